@@ -0,0 +1,79 @@
+package ca.uhn.fhir.jpa.starter.authorization;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTVerifier;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Instant;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per request cost of verifying an access token, comparing the previous
+ * behaviour (build Algorithm and JWTVerifier for every request) with the
+ * cached JwtKeyMaterial.
+ *
+ * Run with: mvn -Pbenchmark test-compile exec:exec -Dbenchmark=JwtVerificationBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtVerificationBenchmark {
+	private static final String BASE_URL = "http://localhost:8080/fhir";
+
+	private RSAPublicKey publicKey;
+	private JwtKeyMaterial keyMaterial;
+	private String token;
+
+	@Setup
+	public void setup() throws NoSuchAlgorithmException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair keyPair = generator.generateKeyPair();
+		publicKey = (RSAPublicKey) keyPair.getPublic();
+		keyMaterial = new JwtKeyMaterial("benchmark", publicKey, (RSAPrivateKey) keyPair.getPrivate());
+		token = JWT.create()
+				.withKeyId(keyMaterial.getKeyId())
+				.withIssuer(BASE_URL)
+				.withAudience(BASE_URL)
+				.withIssuedAt(new Date())
+				.withExpiresAt(Date.from(Instant.now().plusSeconds(3600)))
+				.withClaim("client_id", "benchmark-client")
+				.withClaim("provider_id", "Smart-Practitioner-71482713")
+				.sign(keyMaterial.getAlgorithm());
+	}
+
+	@Benchmark
+	public DecodedJWT rebuildVerifierPerRequest() {
+		Algorithm algorithm = Algorithm.RSA256(publicKey, null);
+		JWTVerifier verifier = JWT.require(algorithm)
+				.withIssuer(BASE_URL)
+				.withAudience(BASE_URL)
+				.build();
+		return verifier.verify(token);
+	}
+
+	@Benchmark
+	public DecodedJWT cachedVerifier() {
+		return keyMaterial.getVerifier(BASE_URL, BASE_URL).verify(token);
+	}
+}
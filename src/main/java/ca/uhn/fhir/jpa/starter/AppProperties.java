@@ -85,6 +85,10 @@ public class AppProperties {
 	private Map<String, Tester> tester = null;
 	private Logger logger = new Logger();
 	private Subscription subscription = new Subscription();
+	private Oauth oauth = new Oauth();
+	private Referral referral = new Referral();
+	private RestClient rest_client = new RestClient();
+	private Extraction extraction = new Extraction();
 	private Cors cors = null;
 	private Partitioning partitioning = null;
 	private Boolean validate_resource_status_for_package_upload = true;
@@ -248,6 +252,38 @@ public class AppProperties {
 		this.subscription = subscription;
 	}
 
+	public Oauth getOauth() {
+		return oauth;
+	}
+
+	public void setOauth(Oauth oauth) {
+		this.oauth = oauth;
+	}
+
+	public Referral getReferral() {
+		return referral;
+	}
+
+	public void setReferral(Referral referral) {
+		this.referral = referral;
+	}
+
+	public RestClient getRest_client() {
+		return rest_client;
+	}
+
+	public void setRest_client(RestClient rest_client) {
+		this.rest_client = rest_client;
+	}
+
+	public Extraction getExtraction() {
+		return extraction;
+	}
+
+	public void setExtraction(Extraction extraction) {
+		this.extraction = extraction;
+	}
+
 	public Boolean getDefault_pretty_print() {
 		return default_pretty_print;
 	}
@@ -999,6 +1035,376 @@ public class AppProperties {
 		}
 	}
 
+	public static class Referral {
+
+		private Boolean push_enabled = true;
+		private String notification_endpoint = null;
+		private Long reconciliation_interval_ms = 300000L;
+		private Outbox outbox = new Outbox();
+		private Polling polling = new Polling();
+		private Cluster cluster = new Cluster();
+
+		public Boolean getPush_enabled() {
+			return push_enabled;
+		}
+
+		public void setPush_enabled(Boolean push_enabled) {
+			this.push_enabled = push_enabled;
+		}
+
+		public String getNotification_endpoint() {
+			return notification_endpoint;
+		}
+
+		public void setNotification_endpoint(String notification_endpoint) {
+			this.notification_endpoint = notification_endpoint;
+		}
+
+		public Long getReconciliation_interval_ms() {
+			return reconciliation_interval_ms;
+		}
+
+		public void setReconciliation_interval_ms(Long reconciliation_interval_ms) {
+			this.reconciliation_interval_ms = reconciliation_interval_ms;
+		}
+
+		public Outbox getOutbox() {
+			return outbox;
+		}
+
+		public void setOutbox(Outbox outbox) {
+			this.outbox = outbox;
+		}
+
+		public Polling getPolling() {
+			return polling;
+		}
+
+		public void setPolling(Polling polling) {
+			this.polling = polling;
+		}
+
+		public Cluster getCluster() {
+			return cluster;
+		}
+
+		public void setCluster(Cluster cluster) {
+			this.cluster = cluster;
+		}
+
+		public static class Cluster {
+
+			private String node_id = null;
+			private Integer shard_count = 16;
+			private Long lease_ttl_ms = 60000L;
+
+			public String getNode_id() {
+				return node_id;
+			}
+
+			public void setNode_id(String node_id) {
+				this.node_id = node_id;
+			}
+
+			public Integer getShard_count() {
+				return shard_count;
+			}
+
+			public void setShard_count(Integer shard_count) {
+				this.shard_count = shard_count;
+			}
+
+			public Long getLease_ttl_ms() {
+				return lease_ttl_ms;
+			}
+
+			public void setLease_ttl_ms(Long lease_ttl_ms) {
+				this.lease_ttl_ms = lease_ttl_ms;
+			}
+		}
+
+		public static class Polling {
+
+			private Long interval_ms = 10000L;
+			private Integer pool_size = 8;
+			private Integer batch_size = 50;
+			private Long receiver_timeout_ms = 30000L;
+
+			public Long getInterval_ms() {
+				return interval_ms;
+			}
+
+			public void setInterval_ms(Long interval_ms) {
+				this.interval_ms = interval_ms;
+			}
+
+			public Integer getPool_size() {
+				return pool_size;
+			}
+
+			public void setPool_size(Integer pool_size) {
+				this.pool_size = pool_size;
+			}
+
+			public Integer getBatch_size() {
+				return batch_size;
+			}
+
+			public void setBatch_size(Integer batch_size) {
+				this.batch_size = batch_size;
+			}
+
+			public Long getReceiver_timeout_ms() {
+				return receiver_timeout_ms;
+			}
+
+			public void setReceiver_timeout_ms(Long receiver_timeout_ms) {
+				this.receiver_timeout_ms = receiver_timeout_ms;
+			}
+		}
+
+		public static class Outbox {
+
+			private Integer pool_size = 4;
+			private Integer max_concurrent_per_receiver = 2;
+			private Integer max_attempts = 10;
+			private Long initial_backoff_ms = 1000L;
+			private Long max_backoff_ms = 300000L;
+			private Long poll_interval_ms = 1000L;
+
+			public Integer getPool_size() {
+				return pool_size;
+			}
+
+			public void setPool_size(Integer pool_size) {
+				this.pool_size = pool_size;
+			}
+
+			public Integer getMax_concurrent_per_receiver() {
+				return max_concurrent_per_receiver;
+			}
+
+			public void setMax_concurrent_per_receiver(Integer max_concurrent_per_receiver) {
+				this.max_concurrent_per_receiver = max_concurrent_per_receiver;
+			}
+
+			public Integer getMax_attempts() {
+				return max_attempts;
+			}
+
+			public void setMax_attempts(Integer max_attempts) {
+				this.max_attempts = max_attempts;
+			}
+
+			public Long getInitial_backoff_ms() {
+				return initial_backoff_ms;
+			}
+
+			public void setInitial_backoff_ms(Long initial_backoff_ms) {
+				this.initial_backoff_ms = initial_backoff_ms;
+			}
+
+			public Long getMax_backoff_ms() {
+				return max_backoff_ms;
+			}
+
+			public void setMax_backoff_ms(Long max_backoff_ms) {
+				this.max_backoff_ms = max_backoff_ms;
+			}
+
+			public Long getPoll_interval_ms() {
+				return poll_interval_ms;
+			}
+
+			public void setPoll_interval_ms(Long poll_interval_ms) {
+				this.poll_interval_ms = poll_interval_ms;
+			}
+		}
+	}
+
+	public static class Extraction {
+
+		private List<String> ig_packages = new ArrayList<>(List.of("hl7.fhir.us.sdoh-clinicalcare#2.3.0"));
+		private Integer engine_pool_size = 1;
+		private Boolean engine_prewarm = true;
+		private Integer pool_size = 2;
+		private Integer queue_size = 500;
+		private Integer max_attempts = 3;
+		private Long retry_backoff_ms = 5000L;
+
+		public List<String> getIg_packages() {
+			return ig_packages;
+		}
+
+		public void setIg_packages(List<String> ig_packages) {
+			this.ig_packages = ig_packages;
+		}
+
+		public Integer getEngine_pool_size() {
+			return engine_pool_size;
+		}
+
+		public void setEngine_pool_size(Integer engine_pool_size) {
+			this.engine_pool_size = engine_pool_size;
+		}
+
+		public Boolean getEngine_prewarm() {
+			return engine_prewarm;
+		}
+
+		public void setEngine_prewarm(Boolean engine_prewarm) {
+			this.engine_prewarm = engine_prewarm;
+		}
+
+		public Integer getPool_size() {
+			return pool_size;
+		}
+
+		public void setPool_size(Integer pool_size) {
+			this.pool_size = pool_size;
+		}
+
+		public Integer getQueue_size() {
+			return queue_size;
+		}
+
+		public void setQueue_size(Integer queue_size) {
+			this.queue_size = queue_size;
+		}
+
+		public Integer getMax_attempts() {
+			return max_attempts;
+		}
+
+		public void setMax_attempts(Integer max_attempts) {
+			this.max_attempts = max_attempts;
+		}
+
+		public Long getRetry_backoff_ms() {
+			return retry_backoff_ms;
+		}
+
+		public void setRetry_backoff_ms(Long retry_backoff_ms) {
+			this.retry_backoff_ms = retry_backoff_ms;
+		}
+	}
+
+	public static class RestClient {
+
+		private Integer connect_timeout_ms = 20000;
+		private Integer socket_timeout_ms = 60000;
+		private Integer connection_request_timeout_ms = 10000;
+		private Integer max_connections_per_route = 20;
+		private Long keep_alive_ms = 30000L;
+		private Integer max_clients = 100;
+		private Long client_idle_ms = 600000L;
+
+		public Integer getConnect_timeout_ms() {
+			return connect_timeout_ms;
+		}
+
+		public void setConnect_timeout_ms(Integer connect_timeout_ms) {
+			this.connect_timeout_ms = connect_timeout_ms;
+		}
+
+		public Integer getSocket_timeout_ms() {
+			return socket_timeout_ms;
+		}
+
+		public void setSocket_timeout_ms(Integer socket_timeout_ms) {
+			this.socket_timeout_ms = socket_timeout_ms;
+		}
+
+		public Integer getConnection_request_timeout_ms() {
+			return connection_request_timeout_ms;
+		}
+
+		public void setConnection_request_timeout_ms(Integer connection_request_timeout_ms) {
+			this.connection_request_timeout_ms = connection_request_timeout_ms;
+		}
+
+		public Integer getMax_connections_per_route() {
+			return max_connections_per_route;
+		}
+
+		public void setMax_connections_per_route(Integer max_connections_per_route) {
+			this.max_connections_per_route = max_connections_per_route;
+		}
+
+		public Long getKeep_alive_ms() {
+			return keep_alive_ms;
+		}
+
+		public void setKeep_alive_ms(Long keep_alive_ms) {
+			this.keep_alive_ms = keep_alive_ms;
+		}
+
+		public Integer getMax_clients() {
+			return max_clients;
+		}
+
+		public void setMax_clients(Integer max_clients) {
+			this.max_clients = max_clients;
+		}
+
+		public Long getClient_idle_ms() {
+			return client_idle_ms;
+		}
+
+		public void setClient_idle_ms(Long client_idle_ms) {
+			this.client_idle_ms = client_idle_ms;
+		}
+	}
+
+	public static class Oauth {
+
+		private String jdbc_url = null;
+		private Integer pool_size = 10;
+		private Integer statement_cache_size = 64;
+		private Integer cache_max_size = 1000;
+		private Long cache_ttl_seconds = 300L;
+
+		public Integer getPool_size() {
+			return pool_size;
+		}
+
+		public void setPool_size(Integer pool_size) {
+			this.pool_size = pool_size;
+		}
+
+		public Integer getStatement_cache_size() {
+			return statement_cache_size;
+		}
+
+		public void setStatement_cache_size(Integer statement_cache_size) {
+			this.statement_cache_size = statement_cache_size;
+		}
+
+		public Integer getCache_max_size() {
+			return cache_max_size;
+		}
+
+		public void setCache_max_size(Integer cache_max_size) {
+			this.cache_max_size = cache_max_size;
+		}
+
+		public Long getCache_ttl_seconds() {
+			return cache_ttl_seconds;
+		}
+
+		public void setCache_ttl_seconds(Long cache_ttl_seconds) {
+			this.cache_ttl_seconds = cache_ttl_seconds;
+		}
+
+		public String getJdbc_url() {
+			return jdbc_url;
+		}
+
+		public void setJdbc_url(String jdbc_url) {
+			this.jdbc_url = jdbc_url;
+		}
+	}
+
 	public static class RemoteSystem {
 		private String system;
 		private String url;
@@ -7,6 +7,7 @@ import ca.uhn.fhir.jpa.starter.authorization.AuthorizationController;
 import ca.uhn.fhir.jpa.starter.cdshooks.StarterCdsHooksConfig;
 import ca.uhn.fhir.jpa.starter.cr.StarterCrDstu3Config;
 import ca.uhn.fhir.jpa.starter.cr.StarterCrR4Config;
+import ca.uhn.fhir.jpa.starter.gravity.extraction.QuestionnaireExtractionService;
 import ca.uhn.fhir.jpa.starter.gravity.interceptors.PostPatientTaskInterceptor;
 import ca.uhn.fhir.jpa.starter.gravity.interceptors.PostReferralTaskInterceptor;
 import ca.uhn.fhir.jpa.starter.gravity.interceptors.SdohCapabilityStatementProvider;
@@ -27,11 +28,13 @@ import org.springframework.boot.web.servlet.support.SpringBootServletInitializer
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Import;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
 import org.springframework.web.servlet.DispatcherServlet;
 
 @ServletComponentScan(basePackageClasses = {RestfulServer.class})
 @SpringBootApplication(exclude = {ThymeleafAutoConfiguration.class})
+@EnableScheduling
 @Import({
 	StarterCrR4Config.class,
 	StarterCrDstu3Config.class,
@@ -59,10 +62,13 @@ public class Application extends SpringBootServletInitializer {
 
 	@Bean
 	@Conditional(OnEitherVersion.class)
-	public ServletRegistrationBean hapiServletRegistration(RestfulServer restfulServer) {
+	public ServletRegistrationBean hapiServletRegistration(
+			RestfulServer restfulServer,
+			PostReferralTaskInterceptor postReferralTaskInterceptor,
+			QuestionnaireExtractionService questionnaireExtractionService) {
 		restfulServer.registerInterceptor(new SdohCapabilityStatementProvider());
-		restfulServer.registerInterceptor(new PostReferralTaskInterceptor());
-		restfulServer.registerInterceptor(new PostPatientTaskInterceptor());
+		restfulServer.registerInterceptor(postReferralTaskInterceptor);
+		restfulServer.registerInterceptor(new PostPatientTaskInterceptor(questionnaireExtractionService));
 		ServletRegistrationBean servletRegistrationBean = new ServletRegistrationBean();
 		beanFactory.autowireBean(restfulServer);
 		servletRegistrationBean.setServlet(restfulServer);
@@ -172,8 +172,7 @@ public class AuthUtils {
 	public static String generateAuthorizationCode(
 			String baseUrl, String clientId, String redirectURI, String providerId, String practitionerId) {
 		try {
-			Algorithm algorithm =
-					Algorithm.RSA256(AuthorizationController.getPublicKey(), AuthorizationController.getPrivateKey());
+			Algorithm algorithm = AuthorizationController.getKeyMaterial().getAlgorithm();
 			Instant expTime = LocalDateTime.now()
 					.plusMinutes(2)
 					.atZone(ZoneId.systemDefault())
@@ -269,14 +268,10 @@ public class AuthUtils {
 	public static String authCodeIsValid(String code, String baseUrl, String redirectURI, String clientId) {
 		String providerId = null;
 		try {
-			Algorithm algorithm = Algorithm.RSA256(AuthorizationController.getPublicKey(), null);
-			JWTVerifier verifier = JWT.require(algorithm)
-					.withIssuer(baseUrl)
-					.withAudience(baseUrl)
-					.withClaim(REDIRECT_URI_KEY, redirectURI)
-					.withClaim(CLIENT_ID_KEY, clientId)
-					.build();
+			JWTVerifier verifier = AuthorizationController.getKeyMaterial().getVerifier(baseUrl, baseUrl);
 			DecodedJWT jwt = verifier.verify(code);
+			requireClaim(jwt, REDIRECT_URI_KEY, redirectURI);
+			requireClaim(jwt, CLIENT_ID_KEY, clientId);
 			String username = jwt.getClaim("username").asString();
 			User user = User.getUser(username);
 			providerId = user != null ? user.getProviderId() : null;
@@ -307,13 +302,9 @@ public class AuthUtils {
 	public static String refreshTokenIsValid(String refreshToken, String baseUrl, String clientId) {
 		String providerId = null;
 		try {
-			Algorithm algorithm = Algorithm.RSA256(AuthorizationController.getPublicKey(), null);
-			JWTVerifier verifier = JWT.require(algorithm)
-					.withIssuer(baseUrl)
-					.withAudience(baseUrl)
-					.withClaim(CLIENT_ID_KEY, clientId)
-					.build();
+			JWTVerifier verifier = AuthorizationController.getKeyMaterial().getVerifier(baseUrl, baseUrl);
 			DecodedJWT jwt = verifier.verify(refreshToken);
+			requireClaim(jwt, CLIENT_ID_KEY, clientId);
 			String jwtId = jwt.getId();
 			providerId = jwt.getClaim("provider_id").asString();
 			if (!jwtId.equals(AuthorizationController.getDB().readRefreshToken(providerId))) {
@@ -340,10 +331,9 @@ public class AuthUtils {
 	 */
 	public static String generateToken(String baseUrl, String clientId, String providerId, String jwtId, Instant exp) {
 		try {
-			Algorithm algorithm =
-					Algorithm.RSA256(AuthorizationController.getPublicKey(), AuthorizationController.getPrivateKey());
+			JwtKeyMaterial keyMaterial = AuthorizationController.getKeyMaterial();
 			return JWT.create()
-					.withKeyId(AuthorizationController.getKeyId())
+					.withKeyId(keyMaterial.getKeyId())
 					.withIssuer(baseUrl)
 					.withAudience(baseUrl)
 					.withIssuedAt(new Date())
@@ -351,7 +341,7 @@ public class AuthUtils {
 					.withClaim(CLIENT_ID_KEY, clientId)
 					.withClaim("provider_id", providerId)
 					.withJWTId(jwtId)
-					.sign(algorithm);
+					.sign(keyMaterial.getAlgorithm());
 		} catch (JWTCreationException e) {
 			logger.log(
 					Level.SEVERE,
@@ -360,4 +350,20 @@ public class AuthUtils {
 		}
 		return null;
 	}
+
+	/**
+	 * Check a request specific claim of an already verified token. The cached
+	 * verifiers only cover the iss and aud claims.
+	 *
+	 * @param jwt      - the verified token
+	 * @param claim    - the claim name
+	 * @param expected - the expected claim value
+	 * @throws InvalidClaimException if the claim is missing or does not match
+	 */
+	private static void requireClaim(DecodedJWT jwt, String claim, String expected) throws InvalidClaimException {
+		String value = jwt.getClaim(claim).asString();
+		if (value == null || !value.equals(expected)) {
+			throw new InvalidClaimException("The Claim '" + claim + "' value doesn't match the required one.");
+		}
+	}
 }
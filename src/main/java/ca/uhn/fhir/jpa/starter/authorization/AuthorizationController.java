@@ -1,9 +1,14 @@
 package ca.uhn.fhir.jpa.starter.authorization;
 
+import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.ServerLogger;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.servlet.http.HttpServletRequest;
 import org.apache.commons.text.StringEscapeUtils;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -31,17 +36,46 @@ public class AuthorizationController {
 	private static RSAPrivateKey privateKey;
 	private static final Logger logger = ServerLogger.getLogger();
 	private static String keyId = "NjVBRjY5MDlCMUIwNzU4RTA2QzZFMDQ4QzQ2MDAyQjVDNjk1RTM2Qg";
+	private static volatile JwtKeyMaterial keyMaterial;
+
+	@Autowired
+	AppProperties appProperties;
+
+	@Autowired
+	ObjectProvider<MeterRegistry> meterRegistry;
 
 	@PostConstruct
-	protected static void postConstruct() throws NoSuchAlgorithmException, InvalidKeySpecException {
+	protected void postConstruct() throws NoSuchAlgorithmException, InvalidKeySpecException {
+		initialize(
+				appProperties != null ? appProperties.getOauth() : new AppProperties.Oauth(),
+				meterRegistry != null ? meterRegistry.getIfAvailable() : null);
+	}
+
+	private static synchronized void initialize(AppProperties.Oauth oauthProperties, MeterRegistry registry)
+			throws NoSuchAlgorithmException, InvalidKeySpecException {
 		if (DB == null) {
-			DB = new Database();
+			DB = new Database("./target/database/", oauthProperties);
+			if (registry != null) {
+				DB.bindCacheMetrics(registry);
+			}
 			AuthUtils.initializeDB();
 			initializeRSAKeys();
 			logger.info("Authorization Endpoint Controller created.");
 		}
 	}
 
+	@PreDestroy
+	protected void preDestroy() {
+		closeDB();
+	}
+
+	private static synchronized void closeDB() {
+		if (DB != null) {
+			DB.close();
+			DB = null;
+		}
+	}
+
 	private static void initializeRSAKeys() throws NoSuchAlgorithmException, InvalidKeySpecException {
 		/*
 		 * Code to generate keys adpated from
@@ -67,8 +101,25 @@ public class AuthorizationController {
 		KeyFactory kf = KeyFactory.getInstance("RSA");
 		RSAPublicKeySpec publicKeySpec = new RSAPublicKeySpec(modulus, publicExponent);
 		RSAPrivateKeySpec privateKeySpec = new RSAPrivateKeySpec(modulus, privateExponent);
-		publicKey = (RSAPublicKey) kf.generatePublic(publicKeySpec);
-		privateKey = (RSAPrivateKey) kf.generatePrivate(privateKeySpec);
+		setKeys(
+				keyId,
+				(RSAPublicKey) kf.generatePublic(publicKeySpec),
+				(RSAPrivateKey) kf.generatePrivate(privateKeySpec));
+	}
+
+	/**
+	 * Set (or rotate) the key pair used to sign and verify tokens. The cached
+	 * signing algorithm and verifiers are rebuilt for the new keys.
+	 *
+	 * @param newKeyId      - the kid header of tokens signed with this key pair
+	 * @param newPublicKey  - the public key
+	 * @param newPrivateKey - the private key
+	 */
+	public static synchronized void setKeys(String newKeyId, RSAPublicKey newPublicKey, RSAPrivateKey newPrivateKey) {
+		keyId = newKeyId;
+		publicKey = newPublicKey;
+		privateKey = newPrivateKey;
+		keyMaterial = new JwtKeyMaterial(newKeyId, newPublicKey, newPrivateKey);
 	}
 
 	public static Database getDB() {
@@ -87,6 +138,10 @@ public class AuthorizationController {
 		return keyId;
 	}
 
+	public static JwtKeyMaterial getKeyMaterial() {
+		return keyMaterial;
+	}
+
 	@GetMapping(value = "/register/user")
 	public String getRegisterUserPage() {
 		return "Registering new clients has been disabled";
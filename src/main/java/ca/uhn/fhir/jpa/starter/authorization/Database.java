@@ -1,17 +1,25 @@
 package ca.uhn.fhir.jpa.starter.authorization;
 
+import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.ServerLogger;
 import ca.uhn.fhir.jpa.starter.gravity.models.ActiveTask;
+import ca.uhn.fhir.jpa.starter.gravity.models.OutboxEntry;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.*;
@@ -37,12 +45,61 @@ public class Database {
 	private static final String JDBC_TYPE = "jdbc:h2:";
 	private static final String JDBC_FILE = "oauth";
 	private static final String JDBC_OPTIONS = ";DB_CLOSE_DELAY=-1";
+	// QUERY_CACHE_SIZE is the number of parsed statements H2 keeps per session. Since
+	// pooled connections keep their session, repeated queries skip re-parsing.
+	private static final String JDBC_QUERY_CACHE_OPTION = ";QUERY_CACHE_SIZE=";
+
+	private static final String READ_USER_BY_USERNAME_SQL =
+			"SELECT TOP 1 provider_id, username, password, timestamp, refresh_token FROM Users WHERE username = ? ORDER BY timestamp DESC;";
+	private static final String READ_USER_BY_PROVIDER_ID_SQL =
+			"SELECT TOP 1 provider_id, username, password, timestamp, refresh_token FROM Users WHERE provider_id = ? ORDER BY timestamp DESC;";
+	private static final String READ_CLIENT_SQL =
+			"SELECT TOP 1 id, secret, redirect, timestamp FROM Clients WHERE id = ? ORDER BY timestamp DESC;";
+	private static final String READ_ACTIVE_TASKS_SQL = "SELECT * FROM ActiveTasks";
+	private static final String READ_ACTIVE_TASK_SQL = "SELECT * FROM ActiveTasks WHERE taskId = ?;";
+	private static final String READ_ACTIVE_TASK_BY_EXTERNAL_ID_SQL =
+			"SELECT * FROM ActiveTasks WHERE externalTaskId = ?;";
+	private static final String DELETE_ACTIVE_TASK_SQL = "DELETE FROM ActiveTasks WHERE taskId = ?;";
+	private static final String READ_DUE_OUTBOX_ENTRIES_SQL =
+			"SELECT * FROM TaskOutbox WHERE nextAttempt <= ? ORDER BY nextAttempt LIMIT ?;";
+	// Entries written before the shard column existed are left to the caller to filter
+	private static final String READ_DUE_OWNED_OUTBOX_ENTRIES_SQL = "SELECT o.* FROM TaskOutbox o"
+			+ " LEFT JOIN PollerLeases l ON l.shard = o.shard"
+			+ " WHERE o.nextAttempt <= ? AND (o.shard IS NULL OR (l.owner = ? AND l.expiresAt >= ?))"
+			+ " ORDER BY o.nextAttempt LIMIT ?;";
+	private static final String READ_OUTBOX_ENTRY_BY_TASK_SQL = "SELECT TOP 1 id FROM TaskOutbox WHERE taskId = ?;";
+	private static final String DELETE_OUTBOX_ENTRY_SQL = "DELETE FROM TaskOutbox WHERE id = ?;";
+	private static final String MARK_OUTBOX_ENTRIES_DUE_SQL =
+			"UPDATE TaskOutbox SET nextAttempt = ? WHERE taskId = ? AND nextAttempt = ?;";
+	private static final String READ_LEASE_SHARDS_SQL = "SELECT shard FROM PollerLeases;";
+	private static final String INSERT_LEASE_SQL = "INSERT INTO PollerLeases (shard, owner, expiresAt) VALUES (?, NULL, 0);";
+	private static final String UPDATE_NODE_SQL = "UPDATE PollerNodes SET expiresAt = ? WHERE nodeId = ?;";
+	private static final String INSERT_NODE_SQL = "INSERT INTO PollerNodes (nodeId, expiresAt) VALUES (?, ?);";
+	private static final String DELETE_EXPIRED_NODES_SQL = "DELETE FROM PollerNodes WHERE expiresAt < ?;";
+	private static final String COUNT_LIVE_NODES_SQL = "SELECT COUNT(*) FROM PollerNodes WHERE expiresAt >= ?;";
+	private static final String RENEW_LEASES_SQL = "UPDATE PollerLeases SET expiresAt = ? WHERE owner = ?;";
+	private static final String READ_OWNED_SHARDS_SQL =
+			"SELECT shard FROM PollerLeases WHERE owner = ? AND expiresAt >= ? ORDER BY shard;";
+	private static final String READ_CLAIMABLE_SHARDS_SQL =
+			"SELECT shard FROM PollerLeases WHERE owner IS NULL OR expiresAt < ? ORDER BY shard;";
+	private static final String CLAIM_LEASE_SQL =
+			"UPDATE PollerLeases SET owner = ?, expiresAt = ? WHERE shard = ? AND (owner IS NULL OR expiresAt < ?);";
+	private static final String RELEASE_LEASE_SQL =
+			"UPDATE PollerLeases SET owner = NULL, expiresAt = 0 WHERE shard = ? AND owner = ?;";
+
 	private String jdbcString;
+	private HikariDataSource dataSource;
+
+	// Read-through caches for the client and user lookups done on every /authorization
+	// and /token request. Entries are invalidated by the writes that change them.
+	private Cache<String, Client> clientCache;
+	private Cache<String, User> userCache;
 
 	public enum Table {
 		CLIENTS("Clients"),
 		USERS("Users"),
-		ACTIVETASKS("ActiveTasks");
+		ACTIVETASKS("ActiveTasks"),
+		TASKOUTBOX("TaskOutbox");
 
 		private final String value;
 
@@ -56,9 +113,7 @@ public class Database {
 	}
 
 	private Connection getConnection() throws SQLException {
-		Connection connection = DriverManager.getConnection(jdbcString);
-		connection.setAutoCommit(true);
-		return connection;
+		return dataSource.getConnection();
 	}
 
 	public Database() {
@@ -66,8 +121,43 @@ public class Database {
 	}
 
 	public Database(String relativePath) {
-		jdbcString = JDBC_TYPE + relativePath + JDBC_FILE + JDBC_OPTIONS;
-		logger.info("JDBC: " + jdbcString);
+		this(relativePath, new AppProperties.Oauth());
+	}
+
+	/**
+	 * Create the OAuth database backed by a dedicated connection pool and
+	 * read-through client/user caches.
+	 *
+	 * @param relativePath    - the directory holding the H2 database file
+	 * @param oauthProperties - pool, statement cache and record cache settings
+	 */
+	public Database(String relativePath, AppProperties.Oauth oauthProperties) {
+		int poolSize = oauthProperties.getPool_size();
+		String jdbcUrl = oauthProperties.getJdbc_url() != null
+				? oauthProperties.getJdbc_url()
+				: JDBC_TYPE + relativePath + JDBC_FILE + JDBC_OPTIONS;
+		jdbcString = jdbcUrl + JDBC_QUERY_CACHE_OPTION + oauthProperties.getStatement_cache_size();
+		logger.info("JDBC: " + jdbcString + " (pool size " + poolSize + ")");
+
+		HikariConfig config = new HikariConfig();
+		config.setPoolName("oauth-db");
+		config.setJdbcUrl(jdbcString);
+		config.setMaximumPoolSize(poolSize);
+		config.setMinimumIdle(Math.min(2, poolSize));
+		config.setAutoCommit(true);
+		dataSource = new HikariDataSource(config);
+
+		Duration cacheTtl = Duration.ofSeconds(oauthProperties.getCache_ttl_seconds());
+		clientCache = Caffeine.newBuilder()
+				.maximumSize(oauthProperties.getCache_max_size())
+				.expireAfterWrite(cacheTtl)
+				.recordStats()
+				.build();
+		userCache = Caffeine.newBuilder()
+				.maximumSize(oauthProperties.getCache_max_size())
+				.expireAfterWrite(cacheTtl)
+				.recordStats()
+				.build();
 
 		try (Connection connection = getConnection()) {
 			String sql =
@@ -82,6 +172,27 @@ public class Database {
 		}
 	}
 
+	/**
+	 * Close the connection pool. The in memory database is kept alive by
+	 * DB_CLOSE_DELAY so a new Database instance will see the same data.
+	 */
+	public void close() {
+		if (dataSource != null && !dataSource.isClosed()) {
+			dataSource.close();
+		}
+	}
+
+	/**
+	 * Expose the client and user cache statistics (hits, misses, evictions, size)
+	 * through the given registry, e.g. at /actuator/metrics/cache.gets
+	 *
+	 * @param registry - the meter registry to bind to
+	 */
+	public void bindCacheMetrics(MeterRegistry registry) {
+		CaffeineCacheMetrics.monitor(registry, clientCache, "oauth.clients");
+		CaffeineCacheMetrics.monitor(registry, userCache, "oauth.users");
+	}
+
 	public String generateAndRunQuery(Table table) {
 		String sql = "SELECT * FROM " + table.value() + " ORDER BY TIMESTAMP DESC";
 		return runQuery(sql, true, true);
@@ -181,24 +292,19 @@ public class Database {
 	}
 
 	/**
-	 * Read a specific row from the database.
+	 * Read a specific row from the Users table.
 	 *
-	 * @param constraintParams - the search constraints for the SQL query.
+	 * @param sql   - the lookup query, with a single '?' parameter.
+	 * @param value - the value of the lookup column.
 	 * @return User
 	 */
-	private User readUser(Map<String, Object> constraintParams) {
-		logger.info("Database::read(Users, " + constraintParams.toString() + ")");
+	private User readUser(String sql, String value) {
+		logger.info("Database::read(Users, " + value + ")");
 		User result = null;
-		if (constraintParams.size() > 0) {
-			try (Connection connection = getConnection()) {
-				String sql = "SELECT TOP 1 provider_id, username, password, timestamp, refresh_token FROM Users WHERE "
-						+ generateClause(constraintParams, WHERE_CONCAT) + " ORDER BY timestamp DESC;";
-				PreparedStatement stmt =
-						generateStatement(sql, Collections.singletonList(constraintParams), connection);
-				if (stmt == null) {
-					logger.severe("Database::stmt was null");
-					return result;
-				}
+		if (value != null) {
+			try (Connection connection = getConnection();
+					PreparedStatement stmt = connection.prepareStatement(sql)) {
+				stmt.setString(1, value);
 				logger.fine("read query: " + stmt.toString());
 				ResultSet rs = stmt.executeQuery();
 
@@ -219,11 +325,14 @@ public class Database {
 	}
 
 	public User readUser(String username) {
-		return this.readUser(Collections.singletonMap("username", username));
+		if (username == null) {
+			return null;
+		}
+		return userCache.get(username, key -> this.readUser(READ_USER_BY_USERNAME_SQL, key));
 	}
 
 	public String readRefreshToken(String providerId) {
-		User user = this.readUser(Collections.singletonMap("provider_id", providerId));
+		User user = this.readUser(READ_USER_BY_PROVIDER_ID_SQL, providerId);
 		if (user != null) {
 			return user.getRefreshToken();
 		} else {
@@ -232,19 +341,30 @@ public class Database {
 	}
 
 	/**
-	 * Read a sepcific row from the Clients table
+	 * Read a sepcific client, served from the client cache when possible
 	 *
 	 * @param clientId - the client ID to search for
 	 * @return Client
 	 */
 	public Client readClient(String clientId) {
-		logger.info("Database::read(Users " + clientId + ")");
+		if (clientId == null) {
+			return null;
+		}
+		return clientCache.get(clientId, this::loadClient);
+	}
+
+	/**
+	 * Read a sepcific row from the Clients table
+	 *
+	 * @param clientId - the client ID to search for
+	 * @return Client
+	 */
+	private Client loadClient(String clientId) {
+		logger.info("Database::read(Clients " + clientId + ")");
 		Client result = null;
 		if (clientId != null) {
-			String sql =
-					"SELECT TOP 1 id, secret, redirect, timestamp FROM Clients WHERE id = ? ORDER BY timestamp DESC;";
 			try (Connection connection = getConnection();
-					PreparedStatement stmt = connection.prepareStatement(sql)) {
+					PreparedStatement stmt = connection.prepareStatement(READ_CLIENT_SQL)) {
 				stmt.setString(1, clientId);
 				logger.fine("read query: " + stmt.toString());
 				ResultSet rs = stmt.executeQuery();
@@ -271,14 +391,13 @@ public class Database {
 	public Map<String, String> getActiveTasks() {
 		logger.info("Database::read(All ActiveTasks");
 		Map<String, String> activeTasksMap = new HashMap<>();
-		String sql = "SELECT * FROM ActiveTasks";
 
 		try (Connection connection = getConnection();
-				PreparedStatement stmt = connection.prepareStatement(sql)) {
+				PreparedStatement stmt = connection.prepareStatement(READ_ACTIVE_TASKS_SQL)) {
 			logger.fine("read query: " + stmt.toString());
 			ResultSet rs = stmt.executeQuery();
 
-			if (rs.next()) {
+			while (rs.next()) {
 				String taskId = rs.getString("taskId");
 				String externalTaskId = rs.getString("externalTaskId");
 				activeTasksMap.put(taskId, externalTaskId);
@@ -292,6 +411,81 @@ public class Database {
 		return activeTasksMap;
 	}
 
+	/**
+	 * Read a single ActiveTask by the ID of the task on this server
+	 *
+	 * @param taskId - the task ID to search for
+	 * @return the ActiveTask or null if the task is not tracked
+	 */
+	public ActiveTask readActiveTask(String taskId) {
+		return readActiveTask(READ_ACTIVE_TASK_SQL, taskId);
+	}
+
+	/**
+	 * Read a single ActiveTask by the ID of its copy on the receiver server
+	 *
+	 * @param externalTaskId - the receiver task ID to search for
+	 * @return the ActiveTask or null if the task is not tracked
+	 */
+	public ActiveTask readActiveTaskByExternalId(String externalTaskId) {
+		return readActiveTask(READ_ACTIVE_TASK_BY_EXTERNAL_ID_SQL, externalTaskId);
+	}
+
+	private ActiveTask readActiveTask(String sql, String value) {
+		logger.info("Database::read(ActiveTasks, " + value + ")");
+		ActiveTask result = null;
+		if (value != null) {
+			try (Connection connection = getConnection();
+					PreparedStatement stmt = connection.prepareStatement(sql)) {
+				stmt.setString(1, value);
+				logger.fine("read query: " + stmt.toString());
+				ResultSet rs = stmt.executeQuery();
+
+				if (rs.next()) {
+					result = toActiveTask(rs);
+					logger.fine("read: " + result);
+				}
+			} catch (SQLException e) {
+				logger.log(Level.SEVERE, "SQLException::Database::readActiveTask: ", e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Read all ActiveTasks with their receiver subscription and version details
+	 */
+	public List<ActiveTask> readActiveTasks() {
+		List<ActiveTask> activeTasks = new ArrayList<>();
+		try (Connection connection = getConnection();
+				PreparedStatement stmt = connection.prepareStatement(READ_ACTIVE_TASKS_SQL)) {
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				activeTasks.add(toActiveTask(rs));
+			}
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "SQLException::Database::readActiveTasks: ", e);
+		}
+		return activeTasks;
+	}
+
+	private static ActiveTask toActiveTask(ResultSet rs) throws SQLException {
+		return new ActiveTask(
+				rs.getString("taskId"),
+				nullIfAbsent(rs.getString("externalTaskId")),
+				nullIfAbsent(rs.getString("subscriptionId")),
+				nullIfAbsent(rs.getString("notificationToken")),
+				nullIfAbsent(rs.getString("externalVersionId")),
+				nullIfAbsent(rs.getString("externalLastUpdated")));
+	}
+
+	/**
+	 * Null values are written as the string "null" (see generateStatement)
+	 */
+	private static String nullIfAbsent(String value) {
+		return value == null || value.equals("null") ? null : value;
+	}
+
 	/**
 	 * Delete a sepcific row from the ActiveTasks table
 	 *
@@ -302,9 +496,8 @@ public class Database {
 		logger.info("Database::delete(ActiveTasks " + taskId + ")");
 		Boolean result = false;
 		if (taskId != null) {
-			String sql = "DELETE FROM ActiveTasks WHERE taskId = ?;";
 			try (Connection connection = getConnection();
-					PreparedStatement stmt = connection.prepareStatement(sql)) {
+					PreparedStatement stmt = connection.prepareStatement(DELETE_ACTIVE_TASK_SQL)) {
 				stmt.setString(1, taskId);
 				logger.fine("read query: " + stmt.toString());
 				stmt.executeUpdate();
@@ -317,6 +510,270 @@ public class Database {
 		return result;
 	}
 
+	/**
+	 * Read the outbox entries due for a delivery attempt, oldest first
+	 *
+	 * @param now   - the current time in epoch millis
+	 * @param limit - the maximum number of entries to return
+	 * @return the due entries
+	 */
+	public List<OutboxEntry> readDueOutboxEntries(long now, int limit) {
+		List<OutboxEntry> entries = new ArrayList<>();
+		try (Connection connection = getConnection();
+				PreparedStatement stmt = connection.prepareStatement(READ_DUE_OUTBOX_ENTRIES_SQL)) {
+			stmt.setLong(1, now);
+			stmt.setInt(2, limit);
+			readOutboxEntries(stmt.executeQuery(), entries);
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "SQLException::Database::readDueOutboxEntries: ", e);
+		}
+		return entries;
+	}
+
+	/**
+	 * Read the outbox entries due for a delivery attempt whose shard is leased by
+	 * the owner, oldest first. Entries without a shard are returned as well.
+	 *
+	 * @param now   - the current time in epoch millis
+	 * @param owner - the node ID
+	 * @param limit - the maximum number of entries to return
+	 * @return the due entries
+	 */
+	public List<OutboxEntry> readDueOutboxEntries(long now, String owner, int limit) {
+		List<OutboxEntry> entries = new ArrayList<>();
+		try (Connection connection = getConnection();
+				PreparedStatement stmt = connection.prepareStatement(READ_DUE_OWNED_OUTBOX_ENTRIES_SQL)) {
+			stmt.setLong(1, now);
+			stmt.setString(2, owner);
+			stmt.setLong(3, now);
+			stmt.setInt(4, limit);
+			readOutboxEntries(stmt.executeQuery(), entries);
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "SQLException::Database::readDueOutboxEntries: ", e);
+		}
+		return entries;
+	}
+
+	private void readOutboxEntries(ResultSet rs, List<OutboxEntry> entries) throws SQLException {
+		while (rs.next()) {
+			int shard = rs.getInt("shard");
+			entries.add(new OutboxEntry(
+					rs.getString("id"),
+					rs.getString("taskId"),
+					rs.wasNull() ? null : shard,
+					rs.getString("receiverUrl"),
+					rs.getString("payload"),
+					rs.getInt("attempts"),
+					rs.getLong("nextAttempt"),
+					nullIfAbsent(rs.getString("lastError"))));
+		}
+	}
+
+	/**
+	 * Check whether a delivery of the task is still pending
+	 *
+	 * @param taskId - the task ID on this server
+	 * @return true if the outbox holds an entry for the task
+	 */
+	public boolean hasOutboxEntry(String taskId) {
+		boolean result = false;
+		try (Connection connection = getConnection();
+				PreparedStatement stmt = connection.prepareStatement(READ_OUTBOX_ENTRY_BY_TASK_SQL)) {
+			stmt.setString(1, taskId);
+			result = stmt.executeQuery().next();
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "SQLException::Database::hasOutboxEntry: ", e);
+		}
+		return result;
+	}
+
+	/**
+	 * Make the entries of a task written before its transaction committed due for
+	 * delivery
+	 *
+	 * @param taskId - the task ID on this server
+	 * @param now    - the current time in epoch millis
+	 * @return the number of entries made due
+	 */
+	public int markOutboxEntriesDue(String taskId, long now) {
+		int result = 0;
+		try (Connection connection = getConnection();
+				PreparedStatement stmt = connection.prepareStatement(MARK_OUTBOX_ENTRIES_DUE_SQL)) {
+			stmt.setLong(1, now);
+			stmt.setString(2, taskId);
+			stmt.setLong(3, OutboxEntry.PENDING_COMMIT);
+			result = stmt.executeUpdate();
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "SQLException::Database::markOutboxEntriesDue: ", e);
+		}
+		return result;
+	}
+
+	/**
+	 * Delete a delivered or abandoned outbox entry
+	 *
+	 * @param id - the outbox entry ID
+	 * @return true if successfully deleted, otherwise false
+	 */
+	public boolean deleteOutboxEntry(String id) {
+		logger.fine("Database::delete(TaskOutbox " + id + ")");
+		boolean result = false;
+		try (Connection connection = getConnection();
+				PreparedStatement stmt = connection.prepareStatement(DELETE_OUTBOX_ENTRY_SQL)) {
+			stmt.setString(1, id);
+			result = stmt.executeUpdate() > 0;
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "SQLException::Database::deleteOutboxEntry: ", e);
+		}
+		return result;
+	}
+
+	/**
+	 * Create the PollerLeases rows for shards 0 to shardCount - 1 which do not
+	 * exist yet. Rows are never removed, lowering shard_count leaves the extra
+	 * shards unclaimed.
+	 *
+	 * @param shardCount - the number of shards
+	 */
+	public void initializeLeases(int shardCount) {
+		try (Connection connection = getConnection()) {
+			Set<Integer> existing = new HashSet<>();
+			try (PreparedStatement stmt = connection.prepareStatement(READ_LEASE_SHARDS_SQL)) {
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) existing.add(rs.getInt(1));
+			}
+			for (int shard = 0; shard < shardCount; shard++) {
+				if (existing.contains(shard)) continue;
+				try (PreparedStatement stmt = connection.prepareStatement(INSERT_LEASE_SQL)) {
+					stmt.setInt(1, shard);
+					stmt.executeUpdate();
+				} catch (SQLException e) {
+					// Another node created it concurrently
+					logger.fine("Database::initializeLeases: shard " + shard + " exists: " + e.getMessage());
+				}
+			}
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "SQLException::Database::initializeLeases: ", e);
+		}
+	}
+
+	/**
+	 * Record that the node is alive until expiresAt, remove nodes which stopped
+	 * renewing and count the live nodes (including this one)
+	 *
+	 * @param nodeId    - this node
+	 * @param now       - the current time in epoch millis
+	 * @param expiresAt - epoch millis until which the node counts as alive
+	 * @return the number of live nodes
+	 */
+	public int heartbeat(String nodeId, long now, long expiresAt) {
+		int liveNodes = 1;
+		try (Connection connection = getConnection()) {
+			try (PreparedStatement stmt = connection.prepareStatement(UPDATE_NODE_SQL)) {
+				stmt.setLong(1, expiresAt);
+				stmt.setString(2, nodeId);
+				if (stmt.executeUpdate() == 0) {
+					try (PreparedStatement insert = connection.prepareStatement(INSERT_NODE_SQL)) {
+						insert.setString(1, nodeId);
+						insert.setLong(2, expiresAt);
+						insert.executeUpdate();
+					}
+				}
+			}
+			try (PreparedStatement stmt = connection.prepareStatement(DELETE_EXPIRED_NODES_SQL)) {
+				stmt.setLong(1, now);
+				stmt.executeUpdate();
+			}
+			try (PreparedStatement stmt = connection.prepareStatement(COUNT_LIVE_NODES_SQL)) {
+				stmt.setLong(1, now);
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) liveNodes = Math.max(1, rs.getInt(1));
+			}
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "SQLException::Database::heartbeat: ", e);
+		}
+		return liveNodes;
+	}
+
+	/**
+	 * Extend every lease held by the owner and return the shards it holds
+	 *
+	 * @param owner     - the node ID
+	 * @param now       - the current time in epoch millis
+	 * @param expiresAt - the new lease expiry in epoch millis
+	 * @return the shards leased by the owner
+	 */
+	public List<Integer> renewLeases(String owner, long now, long expiresAt) {
+		List<Integer> shards = new ArrayList<>();
+		try (Connection connection = getConnection()) {
+			try (PreparedStatement stmt = connection.prepareStatement(RENEW_LEASES_SQL)) {
+				stmt.setLong(1, expiresAt);
+				stmt.setString(2, owner);
+				stmt.executeUpdate();
+			}
+			try (PreparedStatement stmt = connection.prepareStatement(READ_OWNED_SHARDS_SQL)) {
+				stmt.setString(1, owner);
+				stmt.setLong(2, now);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) shards.add(rs.getInt(1));
+			}
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "SQLException::Database::renewLeases: ", e);
+		}
+		return shards;
+	}
+
+	/**
+	 * @param now - the current time in epoch millis
+	 * @return the shards without owner or whose lease expired
+	 */
+	public List<Integer> readClaimableShards(long now) {
+		List<Integer> shards = new ArrayList<>();
+		try (Connection connection = getConnection();
+				PreparedStatement stmt = connection.prepareStatement(READ_CLAIMABLE_SHARDS_SQL)) {
+			stmt.setLong(1, now);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) shards.add(rs.getInt(1));
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "SQLException::Database::readClaimableShards: ", e);
+		}
+		return shards;
+	}
+
+	/**
+	 * Take the lease of a shard if it is still free or expired. The check and the
+	 * update are a single statement, so two nodes cannot both claim the shard.
+	 *
+	 * @return true if the owner now holds the lease
+	 */
+	public boolean claimLease(int shard, String owner, long now, long expiresAt) {
+		boolean result = false;
+		try (Connection connection = getConnection();
+				PreparedStatement stmt = connection.prepareStatement(CLAIM_LEASE_SQL)) {
+			stmt.setString(1, owner);
+			stmt.setLong(2, expiresAt);
+			stmt.setInt(3, shard);
+			stmt.setLong(4, now);
+			result = stmt.executeUpdate() > 0;
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "SQLException::Database::claimLease: ", e);
+		}
+		return result;
+	}
+
+	public boolean releaseLease(int shard, String owner) {
+		boolean result = false;
+		try (Connection connection = getConnection();
+				PreparedStatement stmt = connection.prepareStatement(RELEASE_LEASE_SQL)) {
+			stmt.setInt(1, shard);
+			stmt.setString(2, owner);
+			result = stmt.executeUpdate() > 0;
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "SQLException::Database::releaseLease: ", e);
+		}
+		return result;
+	}
+
 	/**
 	 * Insert a row into database.
 	 *
@@ -334,15 +791,16 @@ public class Database {
 
 				String sql = "INSERT INTO " + table.value() + " (" + setColumns(map.keySet()) + ") VALUES ("
 						+ valueClause + ");";
-				PreparedStatement stmt = generateStatement(sql, Collections.singletonList(map), connection);
-				logger.info("Database.write::PreparedStatement: " + stmt);
-				if (stmt == null) {
-					logger.severe("Database::stmt was null");
-					return result;
+				try (PreparedStatement stmt = generateStatement(sql, Collections.singletonList(map), connection)) {
+					logger.info("Database.write::PreparedStatement: " + stmt);
+					if (stmt == null) {
+						logger.severe("Database::stmt was null");
+						return result;
+					}
+					stmt.execute();
+					logger.fine(stmt.toString());
+					result = true;
 				}
-				result = stmt.execute();
-				logger.fine(stmt.toString());
-				result = true;
 			} catch (SQLException e) {
 				logger.severe("SQLException::Database.write: " + e);
 			}
@@ -358,7 +816,9 @@ public class Database {
 	 */
 	public boolean write(Client client) {
 		logger.info("Database::write Clients(" + client.hashCode() + ")");
-		return write(Table.CLIENTS, client.toMap());
+		boolean result = write(Table.CLIENTS, client.toMap());
+		clientCache.invalidate(client.getId());
+		return result;
 	}
 
 	/**
@@ -369,7 +829,9 @@ public class Database {
 	 */
 	public boolean write(User user) {
 		logger.info("Database::write Users(" + user.toString() + ")");
-		return write(Table.USERS, user.toMap());
+		boolean result = write(Table.USERS, user.toMap());
+		userCache.invalidate(user.getUsername());
+		return result;
 	}
 
 	/**
@@ -383,6 +845,17 @@ public class Database {
 		return write(Table.ACTIVETASKS, activeTask.toMap());
 	}
 
+	/**
+	 * Insert a pending Task delivery into the outbox.
+	 *
+	 * @param entry - the outbox entry to insert
+	 * @return boolean - whether or not the entry was written.
+	 */
+	public boolean write(OutboxEntry entry) {
+		logger.info("Database::write TaskOutbox(" + entry.toString() + ")");
+		return write(Table.TASKOUTBOX, entry.toMap());
+	}
+
 	/**
 	 * Update a single column in a row to a new value
 	 *
@@ -401,14 +874,15 @@ public class Database {
 				Collection<Map<String, Object>> maps = new ArrayList<>();
 				maps.add(data);
 				maps.add(constraintParams);
-				PreparedStatement stmt = generateStatement(sql, maps, connection);
-				if (stmt == null) {
-					logger.severe("Database::stmt was null");
-					return result;
+				try (PreparedStatement stmt = generateStatement(sql, maps, connection)) {
+					if (stmt == null) {
+						logger.severe("Database::stmt was null");
+						return result;
+					}
+					stmt.execute();
+					result = stmt.getUpdateCount() > 0;
+					logger.fine(stmt.toString());
 				}
-				stmt.execute();
-				result = stmt.getUpdateCount() > 0;
-				logger.fine(stmt.toString());
 			} catch (SQLException e) {
 				logger.severe("SQLException::Database.update: " + e);
 			}
@@ -417,7 +891,9 @@ public class Database {
 	}
 
 	public boolean updateClient(Client client) {
-		return this.update(Table.CLIENTS, Collections.singletonMap("id", client.getId()), client.toMap());
+		boolean result = this.update(Table.CLIENTS, Collections.singletonMap("id", client.getId()), client.toMap());
+		clientCache.invalidate(client.getId());
+		return result;
 	}
 
 	public boolean updateActiveTask(ActiveTask activeTask) {
@@ -425,11 +901,40 @@ public class Database {
 				Table.ACTIVETASKS, Collections.singletonMap("taskId", activeTask.getTaskId()), activeTask.toMap());
 	}
 
+	/**
+	 * Remember the receiver task version last synchronized, so later polls only
+	 * fetch the task once it changed
+	 *
+	 * @param taskId      - the task ID on this server
+	 * @param versionId   - meta.versionId of the receiver task
+	 * @param lastUpdated - meta.lastUpdated of the receiver task
+	 */
+	public boolean updateActiveTaskVersion(String taskId, String versionId, String lastUpdated) {
+		Map<String, Object> data = new HashMap<>();
+		data.put("externalVersionId", versionId);
+		data.put("externalLastUpdated", lastUpdated);
+		return this.update(Table.ACTIVETASKS, Collections.singletonMap("taskId", taskId), data);
+	}
+
+	/**
+	 * Record a failed delivery attempt (attempts, nextAttempt and lastError) of an
+	 * outbox entry
+	 */
+	public boolean updateOutboxEntry(OutboxEntry entry) {
+		Map<String, Object> data = new HashMap<>();
+		data.put("attempts", entry.getAttempts());
+		data.put("nextAttempt", entry.getNextAttempt());
+		data.put("lastError", entry.getLastError());
+		return this.update(Table.TASKOUTBOX, Collections.singletonMap("id", entry.getId()), data);
+	}
+
 	public boolean setRefreshTokenId(String clientId, String jwtId) {
-		return this.update(
+		boolean result = this.update(
 				Table.CLIENTS,
 				Collections.singletonMap("id", clientId),
 				Collections.singletonMap("refresh_token", jwtId));
+		clientCache.invalidate(clientId);
+		return result;
 	}
 
 	/**
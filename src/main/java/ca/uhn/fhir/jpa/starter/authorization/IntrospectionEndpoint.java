@@ -1,9 +1,7 @@
 package ca.uhn.fhir.jpa.starter.authorization;
 
 import ca.uhn.fhir.jpa.starter.ServerLogger;
-import com.auth0.jwt.JWT;
 import com.auth0.jwt.JWTVerifier;
-import com.auth0.jwt.algorithms.Algorithm;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
 import org.json.JSONObject;
@@ -20,17 +18,14 @@ public class IntrospectionEndpoint {
 	}
 
 	private static final Logger logger = ServerLogger.getLogger();
-	public static final Algorithm ALGORITHM = Algorithm.RSA256(AuthorizationController.getPublicKey(), null);
-	public static final JWTVerifier VERIFIER = JWT.require(ALGORITHM)
-			.withIssuer(AuthUtils.getFhirBaseUrl())
-			.withAudience(AuthUtils.getFhirBaseUrl())
-			.build();
 
 	public static ResponseEntity<String> handleIntrospection(String token) {
 		final Map<String, String> responseData = new HashMap<>();
 
 		try {
-			DecodedJWT jwt = VERIFIER.verify(token);
+			String baseUrl = AuthUtils.getFhirBaseUrl();
+			JWTVerifier verifier = AuthorizationController.getKeyMaterial().getVerifier(baseUrl, baseUrl);
+			DecodedJWT jwt = verifier.verify(token);
 
 			responseData.put("active", String.valueOf(true));
 			responseData.put("aud", jwt.getAudience().get(0));
@@ -0,0 +1,61 @@
+package ca.uhn.fhir.jpa.starter.authorization;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTVerifier;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+
+/**
+ * Signing algorithm and token verifiers for one RSA key pair. The Algorithm
+ * and JWTVerifier instances are thread safe, so they are built once and
+ * reused for every request. A new instance is created whenever the keys
+ * rotate (see AuthorizationController.setKeys). The issuer and audience come
+ * from the request (e.g. the Host header), so only a bounded number of
+ * verifiers is kept.
+ */
+public class JwtKeyMaterial {
+	private final String keyId;
+	private final Algorithm algorithm;
+	private static final int MAX_VERIFIERS = 64;
+
+	private final Cache<String, JWTVerifier> verifiers =
+			Caffeine.newBuilder().maximumSize(MAX_VERIFIERS).build();
+
+	public JwtKeyMaterial(String keyId, RSAPublicKey publicKey, RSAPrivateKey privateKey) {
+		this.keyId = keyId;
+		this.algorithm = Algorithm.RSA256(publicKey, privateKey);
+	}
+
+	public String getKeyId() {
+		return this.keyId;
+	}
+
+	/**
+	 * Get the algorithm used to sign and verify tokens with this key pair
+	 *
+	 * @return the RSA256 algorithm
+	 */
+	public Algorithm getAlgorithm() {
+		return this.algorithm;
+	}
+
+	/**
+	 * Get the verifier checking the signature, expiration, issuer and audience of
+	 * a token. Request specific claims (client_id, redirect_uri) must be checked by
+	 * the caller.
+	 *
+	 * @param issuer   - the expected iss claim
+	 * @param audience - the expected aud claim
+	 * @return the cached verifier for this issuer and audience
+	 */
+	public JWTVerifier getVerifier(String issuer, String audience) {
+		return verifiers.get(issuer + " " + audience, key -> JWT.require(algorithm)
+				.withIssuer(issuer)
+				.withAudience(audience)
+				.build());
+	}
+}
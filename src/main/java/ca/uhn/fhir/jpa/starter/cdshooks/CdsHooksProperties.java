@@ -2,6 +2,9 @@ package ca.uhn.fhir.jpa.starter.cdshooks;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @ConfigurationProperties(prefix = "hapi.fhir.cdshooks")
 public class CdsHooksProperties {
 
@@ -24,4 +27,130 @@ public class CdsHooksProperties {
 	public void setClientIdHeaderName(String clientIdHeaderName) {
 		this.clientIdHeaderName = clientIdHeaderName;
 	}
+
+	private boolean prettyPrint;
+
+	public boolean isPrettyPrint() {
+		return prettyPrint;
+	}
+
+	public void setPrettyPrint(boolean prettyPrint) {
+		this.prettyPrint = prettyPrint;
+	}
+
+	private Execution execution = new Execution();
+
+	public Execution getExecution() {
+		return execution;
+	}
+
+	public void setExecution(Execution execution) {
+		this.execution = execution;
+	}
+
+	private Prefetch prefetch = new Prefetch();
+
+	public Prefetch getPrefetch() {
+		return prefetch;
+	}
+
+	public void setPrefetch(Prefetch prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	public static class Prefetch {
+		private int poolSize = 16;
+		private long timeoutMs = 5000;
+		private boolean allowPartial = true;
+		private List<String> localBaseUrls = new ArrayList<>();
+		private long cacheTtlSeconds = 30;
+		private long cacheMaxSize = 1000;
+
+		public int getPoolSize() {
+			return poolSize;
+		}
+
+		public void setPoolSize(int poolSize) {
+			this.poolSize = poolSize;
+		}
+
+		public long getTimeoutMs() {
+			return timeoutMs;
+		}
+
+		public void setTimeoutMs(long timeoutMs) {
+			this.timeoutMs = timeoutMs;
+		}
+
+		public boolean isAllowPartial() {
+			return allowPartial;
+		}
+
+		public void setAllowPartial(boolean allowPartial) {
+			this.allowPartial = allowPartial;
+		}
+
+		public List<String> getLocalBaseUrls() {
+			return localBaseUrls;
+		}
+
+		public void setLocalBaseUrls(List<String> localBaseUrls) {
+			this.localBaseUrls = localBaseUrls;
+		}
+
+		public long getCacheTtlSeconds() {
+			return cacheTtlSeconds;
+		}
+
+		public void setCacheTtlSeconds(long cacheTtlSeconds) {
+			this.cacheTtlSeconds = cacheTtlSeconds;
+		}
+
+		public long getCacheMaxSize() {
+			return cacheMaxSize;
+		}
+
+		public void setCacheMaxSize(long cacheMaxSize) {
+			this.cacheMaxSize = cacheMaxSize;
+		}
+	}
+
+	public static class Execution {
+		private int poolSize = 16;
+		private int queueCapacity = 100;
+		private int maxConcurrentPerService = 8;
+		private long timeoutMs = 30000;
+
+		public int getPoolSize() {
+			return poolSize;
+		}
+
+		public void setPoolSize(int poolSize) {
+			this.poolSize = poolSize;
+		}
+
+		public int getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public void setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+		}
+
+		public int getMaxConcurrentPerService() {
+			return maxConcurrentPerService;
+		}
+
+		public void setMaxConcurrentPerService(int maxConcurrentPerService) {
+			this.maxConcurrentPerService = maxConcurrentPerService;
+		}
+
+		public long getTimeoutMs() {
+			return timeoutMs;
+		}
+
+		public void setTimeoutMs(long timeoutMs) {
+			this.timeoutMs = timeoutMs;
+		}
+	}
 }
@@ -7,9 +7,15 @@ import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonParser;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
@@ -17,13 +23,25 @@ import jakarta.servlet.http.HttpServletResponse;
 import org.apache.http.entity.ContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.beans.factory.annotation.Qualifier;
 
 import java.io.IOException;
 import java.io.Serial;
-import java.util.stream.Collectors;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.opencds.cqf.fhir.cr.hapi.config.test.TestCdsHooksConfig.CDS_HOOKS_OBJECT_MAPPER_FACTORY;
 
@@ -40,6 +58,9 @@ public class CdsHooksServlet extends HttpServlet {
 	@Autowired
 	private ProviderConfiguration providerConfiguration;
 
+	@Autowired
+	private CdsHooksProperties cdsHooksProperties;
+
 	@Autowired
 	ICdsServiceRegistry cdsServiceRegistry;
 
@@ -50,6 +71,49 @@ public class CdsHooksServlet extends HttpServlet {
 	@Qualifier(CDS_HOOKS_OBJECT_MAPPER_FACTORY)
 	ObjectMapper objectMapper;
 
+	@Autowired
+	ObjectProvider<MeterRegistry> meterRegistry;
+
+	// Serializes hook responses for the worker to write, indented only when prettyPrint is configured
+	private transient ObjectWriter responseWriter;
+
+	private transient DiscoveryDocumentCache discoveryCache;
+
+	// Hook calls run here instead of on the container's request threads
+	private transient ThreadPoolExecutor hookExecutor;
+
+	// Calls in flight per registered service, capped at maxConcurrentPerService
+	private final transient Map<String, Semaphore> servicePermits = new ConcurrentHashMap<>();
+
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		ObjectWriter writer = objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		responseWriter = cdsHooksProperties.isPrettyPrint() ? writer.with(new DefaultPrettyPrinter()) : writer;
+		discoveryCache = new DiscoveryDocumentCache(responseWriter);
+
+		CdsHooksProperties.Execution execution = cdsHooksProperties.getExecution();
+		AtomicInteger threadCount = new AtomicInteger();
+		hookExecutor = new ThreadPoolExecutor(
+				execution.getPoolSize(),
+				execution.getPoolSize(),
+				0L,
+				TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(execution.getQueueCapacity()),
+				runnable -> {
+					Thread thread = new Thread(runnable, "cds-hooks-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	@Override
+	public void destroy() {
+		hookExecutor.shutdownNow();
+		super.destroy();
+	}
+
 	protected ProviderConfiguration getProviderConfiguration() {
 		return this.providerConfiguration;
 	}
@@ -66,7 +130,7 @@ public class CdsHooksServlet extends HttpServlet {
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
-		logger.info(request.getRequestURI());
+		logger.debug(request.getRequestURI());
 		if (!request.getRequestURL().toString().endsWith("/cds-services")
 				&& !request.getRequestURL().toString().endsWith("/cds-services/")) {
 			logger.error(request.getRequestURI());
@@ -74,56 +138,246 @@ public class CdsHooksServlet extends HttpServlet {
 		}
 		ErrorHandling.setAccessControlHeaders(response, appProperties);
 		response.setHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType());
-		response.getWriter()
-				.println(new GsonBuilder()
-						.setPrettyPrinting()
-						.create()
-						.toJson(JsonParser.parseString(objectMapper.writeValueAsString(getServices()))));
+		response.setCharacterEncoding("UTF-8");
+
+		DiscoveryDocumentCache.Document document = discoveryCache.get(getServices());
+		boolean gzip = acceptsGzip(request);
+		response.setHeader("ETag", document.getEtag(gzip));
+		response.setHeader("Vary", "Accept-Encoding");
+		if (document.matches(request.getHeader("If-None-Match"))) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		if (gzip) {
+			response.setHeader("Content-Encoding", "gzip");
+		}
+		byte[] body = document.getBody(gzip);
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
 	}
 
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
+		if (request.getContentType() == null || !request.getContentType().startsWith("application/json")) {
+			String message =
+					String.format("Invalid content type %s. Please use application/json.", request.getContentType());
+			logger.error(message);
+			throw new ServletException("ERROR: Exception in cds-hooks processing.", new ServletException(message));
+		}
+		String service = request.getPathInfo().replace("/", "");
+		boolean registered = cdsServiceRegistry.getCdsServiceJson(service) != null;
+		String serviceTag = registered ? service : "unknown";
+		long start = System.nanoTime();
+		// Read on the container thread, the request is not used once the call is handed off
+		byte[] body = request.getInputStream().readAllBytes();
+
+		Semaphore permit = registered
+				? servicePermits.computeIfAbsent(
+						service, s -> new Semaphore(cdsHooksProperties.getExecution().getMaxConcurrentPerService()))
+				: null;
+		if (permit != null && !permit.tryAcquire()) {
+			reject(response, 429, "Too many concurrent calls of cds-hooks service " + service);
+			record(serviceTag, "throttled", start);
+			return;
+		}
+
+		// Whoever sets completed first, the call or the timeout, writes the response and
+		// completes it. A call the timeout sets started for is never run, so the timeout
+		// releases its permit; otherwise the call releases it once the hook returned.
+		AtomicBoolean completed = new AtomicBoolean();
+		AtomicBoolean started = new AtomicBoolean();
+		AtomicReference<Future<?>> call = new AtomicReference<>();
+		AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(cdsHooksProperties.getExecution().getTimeoutMs());
+		asyncContext.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (completed.compareAndSet(false, true)) {
+					logger.warn("cds-hooks service {} timed out", service);
+					Future<?> running = call.get();
+					if (running != null) {
+						running.cancel(true);
+					}
+					if (started.compareAndSet(false, true) && permit != null) {
+						permit.release();
+					}
+					try {
+						reject(response, 503, "Timed out calling cds-hooks service " + service);
+					} finally {
+						record(serviceTag, "timeout", start);
+						asyncContext.complete();
+					}
+				}
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) {}
+
+			@Override
+			public void onError(AsyncEvent event) {}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {}
+		});
+
 		try {
-			if (request.getContentType() == null || !request.getContentType().startsWith("application/json")) {
-				throw new ServletException(String.format(
-						"Invalid content type %s. Please use application/json.", request.getContentType()));
+			call.set(hookExecutor.submit(() -> {
+				if (!started.compareAndSet(false, true)) {
+					return;
+				}
+				byte[] result = null;
+				Exception failure = null;
+				try {
+					result = callService(service, body);
+				} catch (Exception e) {
+					logger.error(e.toString());
+					failure = e;
+				} finally {
+					if (permit != null) {
+						permit.release();
+					}
+				}
+				if (completed.compareAndSet(false, true)) {
+					try {
+						if (failure == null) {
+							writeResult(response, result);
+						} else {
+							writeError(response, failure);
+						}
+					} finally {
+						record(serviceTag, failure == null ? "success" : "error", start);
+						asyncContext.complete();
+					}
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			if (permit != null) {
+				permit.release();
+			}
+			if (completed.compareAndSet(false, true)) {
+				try {
+					reject(response, 503, "Too many pending cds-hooks calls");
+				} finally {
+					record(serviceTag, "rejected", start);
+					asyncContext.complete();
+				}
 			}
-			logger.info(request.getRequestURI());
-			String service = request.getPathInfo().replace("/", "");
-
-			String requestJson = request.getReader().lines().collect(Collectors.joining());
-			CdsHooksRequest cdsHooksRequest = objectMapper.readValue(requestJson, CdsHooksRequest.class);
-			logRequestInfo(cdsHooksRequest, requestJson);
-
-			CdsServiceResponseJson serviceResponseJson = cdsServiceRegistry.callService(service, cdsHooksRequest);
-
-			// Using GSON pretty print format as Jackson's is ugly
-			String jsonResponse = new GsonBuilder()
-					.disableHtmlEscaping()
-					.setPrettyPrinting()
-					.create()
-					.toJson(JsonParser.parseString(objectMapper.writeValueAsString(serviceResponseJson)));
-			logger.info(jsonResponse);
+		}
+	}
+
+	/**
+	 * Call the hook
+	 *
+	 * @return the serialized response of the hook
+	 */
+	private byte[] callService(String service, byte[] body) throws IOException {
+		CdsHooksRequest cdsHooksRequest = objectMapper.readValue(body, CdsHooksRequest.class);
+		logRequestInfo(service, cdsHooksRequest);
+
+		CdsServiceResponseJson serviceResponseJson = cdsServiceRegistry.callService(service, cdsHooksRequest);
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("cds-hooks response: {}", objectMapper.writeValueAsString(serviceResponseJson));
+		}
+		return responseWriter.writeValueAsBytes(serviceResponseJson);
+	}
+
+	private void writeResult(HttpServletResponse response, byte[] result) {
+		try {
 			response.setContentType("text/json;charset=UTF-8");
-			response.getWriter().println(jsonResponse);
-		} catch (BaseServerResponseException e) {
-			ErrorHandling.handleError(response, "ERROR: Exception connecting to remote server.", e, appProperties);
-			logger.error(e.toString());
-		} catch (Exception e) {
-			logger.error(e.toString());
-			throw new ServletException("ERROR: Exception in cds-hooks processing.", e);
+			response.setContentLength(result.length);
+			response.getOutputStream().write(result);
+		} catch (IOException e) {
+			logger.error("Unable to write cds-hooks response: {}", e.toString());
+		}
+	}
+
+	/**
+	 * Errors of the remote FHIR server are reported in full, any other failure
+	 * only as a plain 500 so no internals end up in the response
+	 */
+	private void writeError(HttpServletResponse response, Exception e) {
+		try {
+			ErrorHandling.LocalAuthorizationError localError = localAuthorizationError(e);
+			if (localError != null) {
+				// The fhirAuthorization token was rejected by this server, not by a remote one
+				ErrorHandling.setAccessControlHeaders(response, appProperties);
+				response.setStatus(localError.getStatusCode());
+				response.setContentType("text/plain;charset=UTF-8");
+				response.getOutputStream()
+						.write(("ERROR: " + localError.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+			} else if (e instanceof BaseServerResponseException) {
+				ErrorHandling.handleError(response, "ERROR: Exception connecting to remote server.", e, appProperties);
+			} else {
+				ErrorHandling.setAccessControlHeaders(response, appProperties);
+				response.setStatus(500);
+				response.setContentType("text/plain;charset=UTF-8");
+				response.getOutputStream()
+						.write("ERROR: Exception in cds-hooks processing.\n".getBytes(StandardCharsets.UTF_8));
+			}
+		} catch (IOException | IllegalStateException writeError) {
+			logger.error("Unable to write cds-hooks error response: {}", writeError.toString());
+		}
+	}
+
+	private static ErrorHandling.LocalAuthorizationError localAuthorizationError(Exception e) {
+		if (e instanceof ErrorHandling.LocalAuthorizationError) {
+			return (ErrorHandling.LocalAuthorizationError) e;
+		}
+		return e.getCause() instanceof ErrorHandling.LocalAuthorizationError
+				? (ErrorHandling.LocalAuthorizationError) e.getCause()
+				: null;
+	}
+
+	private void reject(HttpServletResponse response, int status, String message) throws IOException {
+		ErrorHandling.setAccessControlHeaders(response, appProperties);
+		response.setStatus(status);
+		response.setHeader("Retry-After", "1");
+		response.setContentType("text/plain;charset=UTF-8");
+		response.getOutputStream().write((message + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void record(String service, String outcome, long start) {
+		MeterRegistry registry = meterRegistry.getIfAvailable();
+		if (registry != null) {
+			Timer.builder("cdshooks.requests")
+					.description("Duration of CDS Hooks service calls")
+					.tag("service", service)
+					.tag("outcome", outcome)
+					.publishPercentileHistogram()
+					.register(registry)
+					.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
 		}
 	}
 
-	private void logRequestInfo(CdsServiceRequestJson request, String jsonRequest) {
-		logger.info(jsonRequest);
-		logger.info("cds-hooks hook instance: {}", request.getHookInstance());
-		logger.info("cds-hooks local server address: {}", appProperties.getServer_address());
-		logger.info("cds-hooks fhir server address: {}", request.getFhirServer());
+	private void logRequestInfo(String service, CdsServiceRequestJson request) throws IOException {
 		logger.info(
-				"cds-hooks cql_logging_enabled: {}",
-				this.getProviderConfiguration().getCqlLoggingEnabled());
+				"cds-hooks service: {}, hook instance: {}, fhir server address: {}",
+				service,
+				request.getHookInstance(),
+				request.getFhirServer());
+		if (logger.isDebugEnabled()) {
+			logger.debug("cds-hooks request: {}", objectMapper.writeValueAsString(request));
+			logger.debug("cds-hooks local server address: {}", appProperties.getServer_address());
+			logger.debug(
+					"cds-hooks cql_logging_enabled: {}",
+					this.getProviderConfiguration().getCqlLoggingEnabled());
+		}
+	}
+
+	private static boolean acceptsGzip(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String encoding : acceptEncoding.split(",")) {
+			String[] parts = encoding.trim().split(";");
+			if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+				return parts.length < 2 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
 	}
 
 	private CdsServicesJson getServices() {
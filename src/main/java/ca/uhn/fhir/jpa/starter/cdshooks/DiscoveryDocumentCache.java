@@ -0,0 +1,110 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The serialized CDS Services discovery document, with its gzipped form and
+ * strong ETags, so polling EHR clients are answered without serializing the
+ * registered services again. PlanDefinition changes reach the discovery
+ * document through the CR discovery registry, which resolves a new
+ * CdsServiceJson for each created or updated PlanDefinition and registers it,
+ * and unregisters deleted ones. The cached document remembers the service
+ * instances it was built from and is rebuilt as soon as the registered
+ * services differ, so it cannot be rebuilt before a change is registered and
+ * then kept stale.
+ */
+public class DiscoveryDocumentCache {
+	private final ObjectWriter writer;
+	private volatile Document document;
+
+	public DiscoveryDocumentCache(ObjectWriter theWriter) {
+		writer = theWriter;
+	}
+
+	/**
+	 * Get the discovery document for the currently registered services
+	 *
+	 * @param theServices - the services of the CDS service registry
+	 * @return the cached document, rebuilt if the services changed
+	 */
+	public Document get(CdsServicesJson theServices) throws IOException {
+		List<CdsServiceJson> services = new ArrayList<>(theServices.getServices());
+		Document current = document;
+		if (current == null || !current.isBuiltFrom(services)) {
+			current = new Document(services, writer.writeValueAsBytes(theServices));
+			document = current;
+		}
+		return current;
+	}
+
+	public static class Document {
+		private final List<CdsServiceJson> services;
+		private final byte[] json;
+		private final byte[] gzip;
+		private final String etag;
+		private final String gzipEtag;
+
+		Document(List<CdsServiceJson> services, byte[] json) throws IOException {
+			this.services = services;
+			this.json = json;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length / 4 + 64);
+			try (GZIPOutputStream gzipStream = new GZIPOutputStream(bytes)) {
+				gzipStream.write(json);
+			}
+			this.gzip = bytes.toByteArray();
+			String hash = DigestUtils.sha256Hex(json);
+			this.etag = "\"" + hash + "\"";
+			// A strong ETag identifies the exact bytes, so the gzipped body gets its own
+			this.gzipEtag = "\"" + hash + "-gzip\"";
+		}
+
+		private boolean isBuiltFrom(List<CdsServiceJson> theServices) {
+			if (services.size() != theServices.size()) {
+				return false;
+			}
+			for (int i = 0; i < services.size(); i++) {
+				if (services.get(i) != theServices.get(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public byte[] getBody(boolean gzipped) {
+			return gzipped ? gzip : json;
+		}
+
+		public String getEtag(boolean gzipped) {
+			return gzipped ? gzipEtag : etag;
+		}
+
+		/**
+		 * @param ifNoneMatch - the If-None-Match request header
+		 * @return whether the client already holds this document, in either encoding
+		 */
+		public boolean matches(String ifNoneMatch) {
+			if (ifNoneMatch == null) {
+				return false;
+			}
+			for (String tag : ifNoneMatch.split(",")) {
+				String candidate = tag.trim();
+				if (candidate.startsWith("W/")) {
+					candidate = candidate.substring(2);
+				}
+				if ("*".equals(candidate) || etag.equals(candidate) || gzipEtag.equals(candidate)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -102,4 +102,15 @@ public class ErrorHandling {
 			super(message);
 		}
 	}
+
+	/**
+	 * A fhirAuthorization token rejected by this server when prefetching through
+	 * the DAOs. Unlike a 401 or 403 from a remote FHIR server it is answered with
+	 * its own status.
+	 */
+	public static class LocalAuthorizationError extends BaseServerResponseException {
+		public LocalAuthorizationError(int statusCode, String message, Throwable cause) {
+			super(statusCode, message, cause);
+		}
+	}
 }
@@ -0,0 +1,201 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short lived cache of CDS Hooks prefetch results. Clinician UIs call
+ * patient-view and order-select repeatedly for the same patient, so the
+ * results are kept for a few seconds per fhirServer, caller, patient, prefetch
+ * key and resolved query. The caller is a SHA-256 digest of the
+ * fhirAuthorization access token, so a result is only reused for the token
+ * which was allowed to read it, and the raw token is not retained. Results are
+ * kept serialized and every hit parses its own copy, so concurrent hook calls
+ * never share mutable resources. Writes to this server of a resource in a patient's
+ * compartment (or of the Patient itself) evict that patient's entries, both
+ * when the write is stored and after it commits. Changes on other servers,
+ * and to resources outside the compartment such as included Medications, are
+ * only picked up once the entries expire. A query which overlapped an
+ * eviction of its patient is not cached, and hooks without a patient context
+ * are never cached since no write would evict them. Hits and misses are
+ * exposed as the cdshooks.prefetch cache metrics.
+ */
+@Interceptor
+public class PrefetchResultCache {
+	private final FhirContext fhirContext;
+	private final Cache<Key, Optional<String>> results;
+	// Stamp of the last eviction per patient, taken from sequence so a stamp is
+	// never reused. Only patients with a query running or cached are tracked.
+	private final Cache<String, Long> generations;
+	private final AtomicLong sequence = new AtomicLong();
+
+	public PrefetchResultCache(FhirContext theFhirContext, CdsHooksProperties.Prefetch theProperties) {
+		fhirContext = theFhirContext;
+		results = Caffeine.newBuilder()
+				.expireAfterWrite(Duration.ofSeconds(theProperties.getCacheTtlSeconds()))
+				.maximumSize(theProperties.getCacheMaxSize())
+				.recordStats()
+				.build();
+		generations = Caffeine.newBuilder()
+				.expireAfterAccess(Duration.ofSeconds(theProperties.getCacheTtlSeconds()))
+				.maximumSize(theProperties.getCacheMaxSize())
+				.build();
+	}
+
+	public void bindMetrics(MeterRegistry theMeterRegistry) {
+		CaffeineCacheMetrics.monitor(theMeterRegistry, results, "cdshooks.prefetch");
+	}
+
+	/**
+	 * Get the cached result of a prefetch query, running it on a miss
+	 *
+	 * @param fhirServer  - the hook's fhirServer
+	 * @param accessToken - the hook's fhirAuthorization access token, null if none
+	 * @param patientId   - the hook's context.patientId, null to run the query
+	 *                    without caching
+	 * @param template    - the prefetch key
+	 * @param url         - the query with its parameters resolved
+	 * @param query       - the query to run on a miss
+	 * @return the query result, a copy owned by the caller, null if it found nothing
+	 */
+	public IBaseResource get(
+			String fhirServer,
+			String accessToken,
+			String patientId,
+			String template,
+			String url,
+			Callable<IBaseResource> query)
+			throws Exception {
+		if (patientId == null) {
+			return query.call();
+		}
+		String id = toPatientId(patientId);
+		Key key = new Key(fhirServer, toCaller(accessToken), id, template, url);
+		Optional<String> cached = results.getIfPresent(key);
+		if (cached != null) {
+			return cached.map(json -> fhirContext.newJsonParser().parseResource(json))
+					.orElse(null);
+		}
+		Long generation = generations.get(id, k -> sequence.incrementAndGet());
+		IBaseResource result = query.call();
+		// An eviction during the query may have missed what it read, the result is
+		// then returned but not cached
+		if (generation.equals(generations.getIfPresent(id))) {
+			results.put(key, Optional.ofNullable(result).map(fhirContext.newJsonParser()::encodeResourceToString));
+		}
+		return result;
+	}
+
+	public void evictPatient(String patientId) {
+		String id = toPatientId(patientId);
+		generations.asMap().computeIfPresent(id, (k, generation) -> sequence.incrementAndGet());
+		results.asMap().keySet().removeIf(key -> key.patientId.equals(id));
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		evictCompartmentOwners(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theResource) {
+		evictCompartmentOwners(theOldResource);
+		evictCompartmentOwners(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		evictCompartmentOwners(theResource);
+	}
+
+	private void evictCompartmentOwners(IBaseResource theResource) {
+		if (theResource == null || results.estimatedSize() == 0) {
+			return;
+		}
+		Set<String> patientIds = new HashSet<>();
+		if ("Patient".equals(fhirContext.getResourceType(theResource))) {
+			patientIds.add(theResource.getIdElement().getIdPart());
+		}
+		for (IIdType owner : fhirContext.newTerser().getCompartmentOwnersForResource("Patient", theResource, Set.of())) {
+			patientIds.add(owner.getIdPart());
+		}
+		patientIds.remove(null);
+		if (patientIds.isEmpty()) {
+			return;
+		}
+		patientIds.forEach(this::evictPatient);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			// Evict again so results read before the commit are not kept
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					patientIds.forEach(PrefetchResultCache.this::evictPatient);
+				}
+			});
+		}
+	}
+
+	private static String toCaller(String accessToken) {
+		return accessToken == null ? "" : DigestUtils.sha256Hex(accessToken);
+	}
+
+	private static String toPatientId(String patientId) {
+		return patientId.startsWith("Patient/") ? patientId.substring("Patient/".length()) : patientId;
+	}
+
+	private static final class Key {
+		private final String fhirServer;
+		private final String caller;
+		private final String patientId;
+		private final String template;
+		private final String url;
+
+		Key(String fhirServer, String caller, String patientId, String template, String url) {
+			this.fhirServer = fhirServer;
+			this.caller = caller;
+			this.patientId = patientId;
+			this.template = template;
+			this.url = url;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return Objects.equals(fhirServer, other.fhirServer)
+					&& caller.equals(other.caller)
+					&& patientId.equals(other.patientId)
+					&& template.equals(other.template)
+					&& url.equals(other.url);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(fhirServer, caller, patientId, template, url);
+		}
+	}
+}
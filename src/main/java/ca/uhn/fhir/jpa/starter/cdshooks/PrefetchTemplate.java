@@ -0,0 +1,278 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestContextJson;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.util.UrlUtil;
+import org.apache.commons.lang3.StringUtils;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A CDS Hooks prefetch template parsed once into its resource type, resource
+ * id and search parameters, with the tokens kept as slots. Binding a hook call
+ * only fills the slots, so the template is not scanned, split or URL decoded
+ * again on every call. Supported tokens are {{context.name}}, resolved from
+ * the hook context, and {{today}}, optionally with an offset such as
+ * {{today - 1 years}} (days, weeks, months or years). A token in the id of a
+ * read, as in Patient/{{context.patientId}}, drops a leading "Patient/" of the
+ * bound value. Bound values are URL escaped in the url, so a context value
+ * cannot add parameters to the query. Templates are compiled when the CDS
+ * service declaring them is first called after its registration.
+ */
+public class PrefetchTemplate {
+	private static final Pattern TOKEN = Pattern.compile("\\{\\{\\s*(.+?)\\s*}}");
+	private static final Pattern TODAY =
+			Pattern.compile("today(?:\\s*([+-])\\s*(\\d+)\\s*(day|week|month|year)s?)?", Pattern.CASE_INSENSITIVE);
+	private static final String CONTEXT_PREFIX = "context.";
+
+	private final String template;
+	private final String resourceType;
+	private final Value resourceId;
+	private final List<Map.Entry<String, Value>> params;
+
+	private PrefetchTemplate(
+			String template, String resourceType, Value resourceId, List<Map.Entry<String, Value>> params) {
+		this.template = template;
+		this.resourceType = resourceType;
+		this.resourceId = resourceId;
+		this.params = params;
+	}
+
+	/**
+	 * Parse a prefetch template
+	 *
+	 * @param template - a relative read (Type/id) or search (Type?params) url
+	 * @return the compiled template
+	 * @throws IllegalArgumentException when the template has no resource type
+	 *                                  or uses an unsupported token
+	 */
+	public static PrefetchTemplate compile(String template) {
+		int queryStart = template.indexOf('?');
+		String path = queryStart < 0 ? template : template.substring(0, queryStart);
+		String[] pathParts = StringUtils.strip(path, "/").split("/", 2);
+		if (StringUtils.isBlank(pathParts[0])) {
+			throw new IllegalArgumentException("Prefetch template " + template + " does not start with a resource type");
+		}
+		String resourceType = pathParts[0];
+		Value resourceId = pathParts.length > 1 ? Value.parse(template, pathParts[1], resourceType + "/") : null;
+
+		List<Map.Entry<String, Value>> params = new ArrayList<>();
+		if (queryStart >= 0) {
+			for (String param : template.substring(queryStart + 1).split("&")) {
+				if (param.isEmpty()) {
+					continue;
+				}
+				int equals = param.indexOf('=');
+				String name = equals < 0 ? param : param.substring(0, equals);
+				String value = equals < 0 ? "" : param.substring(equals + 1);
+				params.add(Map.entry(name, Value.parse(template, value, null)));
+			}
+		}
+		return new PrefetchTemplate(template, resourceType, resourceId, Collections.unmodifiableList(params));
+	}
+
+	public String getTemplate() {
+		return template;
+	}
+
+	public String getResourceType() {
+		return resourceType;
+	}
+
+	/**
+	 * Fill the slots of the template for a hook call
+	 *
+	 * @param theContext - the hook context the {{context.*}} tokens are read from
+	 * @param theToday   - the date the {{today}} tokens are relative to
+	 * @return the query to run
+	 * @throws InvalidRequestException when the context lacks a value the
+	 *                                 template needs
+	 */
+	public Query bind(CdsServiceRequestContextJson theContext, LocalDate theToday) {
+		StringBuilder url = new StringBuilder(template.length() + 32).append(resourceType);
+		String id = null;
+		if (resourceId != null) {
+			id = resourceId.bind(theContext, theToday, url.append('/'));
+		}
+		Map<String, List<String>> values = new LinkedHashMap<>();
+		char separator = '?';
+		for (Map.Entry<String, Value> param : params) {
+			url.append(separator).append(param.getKey()).append('=');
+			separator = '&';
+			values.computeIfAbsent(UrlUtil.unescape(param.getKey()), k -> new ArrayList<>(1))
+					.add(param.getValue().bind(theContext, theToday, url));
+		}
+		return new Query(resourceType, id, values, url.toString());
+	}
+
+	@Override
+	public String toString() {
+		return template;
+	}
+
+	/**
+	 * A prefetch template bound to the values of one hook call
+	 */
+	public static class Query {
+		private final String resourceType;
+		private final String resourceId;
+		private final Map<String, List<String>> params;
+		private final String url;
+
+		Query(String resourceType, String resourceId, Map<String, List<String>> params, String url) {
+			this.resourceType = resourceType;
+			this.resourceId = resourceId;
+			this.params = params;
+			this.url = url;
+		}
+
+		public String getResourceType() {
+			return resourceType;
+		}
+
+		/**
+		 * @return the id to read, null for a search
+		 */
+		public String getResourceId() {
+			return resourceId;
+		}
+
+		/**
+		 * @return the URL decoded search parameters, repeated parameters keep all
+		 *         their values
+		 */
+		public Map<String, List<String>> getParams() {
+			return params;
+		}
+
+		/**
+		 * @return the relative url, as the template with its tokens replaced
+		 */
+		public String getUrl() {
+			return url;
+		}
+	}
+
+	/**
+	 * A path segment or parameter value: literal text and slots in order
+	 */
+	private static class Value {
+		private final List<Object> parts;
+		private final String stripPrefix;
+
+		private Value(List<Object> parts, String stripPrefix) {
+			this.parts = parts;
+			this.stripPrefix = stripPrefix;
+		}
+
+		static Value parse(String template, String text, String stripPrefix) {
+			List<Object> parts = new ArrayList<>();
+			Matcher matcher = TOKEN.matcher(text);
+			int last = 0;
+			while (matcher.find()) {
+				if (matcher.start() > last) {
+					parts.add(new Literal(text.substring(last, matcher.start())));
+				}
+				parts.add(Slot.parse(template, matcher.group(1)));
+				last = matcher.end();
+			}
+			if (last < text.length()) {
+				parts.add(new Literal(text.substring(last)));
+			}
+			return new Value(parts, stripPrefix);
+		}
+
+		/**
+		 * Append the bound value to the url, with the slot values URL escaped, and
+		 * return it URL decoded
+		 */
+		String bind(CdsServiceRequestContextJson theContext, LocalDate theToday, StringBuilder url) {
+			if (parts.size() == 1 && parts.get(0) instanceof Literal) {
+				Literal literal = (Literal) parts.get(0);
+				url.append(literal.raw);
+				return literal.decoded;
+			}
+			StringBuilder decoded = new StringBuilder();
+			for (Object part : parts) {
+				if (part instanceof Literal) {
+					url.append(((Literal) part).raw);
+					decoded.append(((Literal) part).decoded);
+				} else {
+					String value = ((Slot) part).resolve(theContext, theToday);
+					if (stripPrefix != null && value.startsWith(stripPrefix)) {
+						value = value.substring(stripPrefix.length());
+					}
+					url.append(UrlUtil.escapeUrlParam(value));
+					decoded.append(value);
+				}
+			}
+			return decoded.toString();
+		}
+	}
+
+	private static class Literal {
+		private final String raw;
+		private final String decoded;
+
+		Literal(String raw) {
+			this.raw = raw;
+			this.decoded = UrlUtil.unescape(raw);
+		}
+	}
+
+	private static class Slot {
+		private final String token;
+		private final String contextKey;
+		private final int offset;
+		private final String unit;
+
+		private Slot(String token, String contextKey, int offset, String unit) {
+			this.token = token;
+			this.contextKey = contextKey;
+			this.offset = offset;
+			this.unit = unit;
+		}
+
+		static Slot parse(String template, String token) {
+			if (token.startsWith(CONTEXT_PREFIX) && token.length() > CONTEXT_PREFIX.length()) {
+				return new Slot(token, token.substring(CONTEXT_PREFIX.length()), 0, null);
+			}
+			Matcher today = TODAY.matcher(token);
+			if (today.matches()) {
+				if (today.group(1) == null) {
+					return new Slot(token, null, 0, "day");
+				}
+				int amount = Integer.parseInt(today.group(2));
+				return new Slot(token, null, "-".equals(today.group(1)) ? -amount : amount, today.group(3).toLowerCase());
+			}
+			throw new IllegalArgumentException("Prefetch template " + template + " uses unsupported token {{" + token + "}}");
+		}
+
+		String resolve(CdsServiceRequestContextJson theContext, LocalDate theToday) {
+			if (contextKey != null) {
+				String value = theContext == null ? null : theContext.getString(contextKey);
+				if (StringUtils.isBlank(value)) {
+					throw new InvalidRequestException("Prefetch needs context." + contextKey + " for {{" + token + "}}");
+				}
+				return value;
+			}
+			switch (unit) {
+				case "week":
+					return theToday.plusWeeks(offset).toString();
+				case "month":
+					return theToday.plusMonths(offset).toString();
+				case "year":
+					return theToday.plusYears(offset).toString();
+				default:
+					return theToday.plusDays(offset).toString();
+			}
+		}
+	}
+}
@@ -1,11 +1,20 @@
 package ca.uhn.fhir.jpa.starter.cdshooks;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.cr.CrCommonConfig;
 import ca.uhn.fhir.jpa.starter.cr.CrConfigCondition;
 import ca.uhn.fhir.jpa.starter.cr.CrProperties;
+import ca.uhn.fhir.jpa.starter.gravity.interceptors.SmartAuthInterceptor;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsHooksDaoAuthorizationSvc;
 import ca.uhn.hapi.fhir.cdshooks.svc.CdsHooksContextBooter;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchDaoSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchFhirClientSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsResolutionStrategySvc;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.fhir.cr.hapi.cdshooks.CdsCrServiceRegistry;
 import org.opencds.cqf.fhir.cr.hapi.cdshooks.CdsCrSettings;
@@ -15,12 +24,14 @@ import org.opencds.cqf.fhir.cr.hapi.cdshooks.discovery.ICdsCrDiscoveryServiceReg
 import org.opencds.cqf.fhir.cr.hapi.config.CrCdsHooksConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.RepositoryConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.test.TestCdsHooksConfig;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
 
 @Configuration
 @Conditional({CdsHooksConfigCondition.class, CrConfigCondition.class})
@@ -66,6 +77,38 @@ public class StarterCdsHooksConfig {
 		public void authorizePreShow(IBaseResource theResource) {}
 	}
 
+	@Bean
+	@Primary
+	public ModuleConfigurationPrefetchSvc moduleConfigurationPrefetchSvc(
+			CdsResolutionStrategySvc theCdsResolutionStrategySvc,
+			CdsPrefetchDaoSvc theResourcePrefetchDao,
+			CdsPrefetchFhirClientSvc theResourcePrefetchFhirClient,
+			ICdsHooksDaoAuthorizationSvc theCdsHooksDaoAuthorizationSvc,
+			IInterceptorBroadcaster theInterceptorBroadcaster,
+			CdsHooksProperties theCdsHooksProperties,
+			AppProperties theAppProperties,
+			FhirContext theFhirContext,
+			IInterceptorService theInterceptorService,
+			ObjectProvider<MeterRegistry> theMeterRegistry) {
+		PrefetchResultCache prefetchCache = null;
+		if (theCdsHooksProperties.getPrefetch().getCacheTtlSeconds() > 0) {
+			prefetchCache = new PrefetchResultCache(theFhirContext, theCdsHooksProperties.getPrefetch());
+			theMeterRegistry.ifAvailable(prefetchCache::bindMetrics);
+			theInterceptorService.registerInterceptor(prefetchCache);
+		}
+		return new ModuleConfigurationPrefetchSvc(
+				theCdsResolutionStrategySvc,
+				theResourcePrefetchDao,
+				theResourcePrefetchFhirClient,
+				theCdsHooksDaoAuthorizationSvc,
+				theInterceptorBroadcaster,
+				theCdsHooksProperties,
+				theAppProperties,
+				prefetchCache,
+				new SmartAuthInterceptor(theAppProperties),
+				theMeterRegistry.getIfAvailable());
+	}
+
 	@Bean
 	public ProviderConfiguration providerConfiguration(CdsHooksProperties cdsProperties, CrProperties crProperties) {
 		return new ProviderConfiguration(cdsProperties, crProperties);
@@ -86,6 +129,7 @@ public class StarterCdsHooksConfig {
 		registrationBean.setServlet(cdsHooksServlet);
 		registrationBean.addUrlMappings("/cds-services/*");
 		registrationBean.setLoadOnStartup(1);
+		registrationBean.setAsyncSupported(true);
 		return registrationBean;
 	}
 }
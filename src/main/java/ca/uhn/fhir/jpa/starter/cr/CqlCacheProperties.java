@@ -0,0 +1,34 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+public class CqlCacheProperties {
+
+	// Compiled libraries are weighed by their number of expression and function definitions
+	private long library_max_weight = 20000;
+	private long model_max_size = 50;
+	// ValueSet expansions are weighed by their number of codes
+	private long valueset_max_codes = 500000;
+
+	public long getLibrary_max_weight() {
+		return library_max_weight;
+	}
+
+	public void setLibrary_max_weight(long library_max_weight) {
+		this.library_max_weight = library_max_weight;
+	}
+
+	public long getModel_max_size() {
+		return model_max_size;
+	}
+
+	public void setModel_max_size(long model_max_size) {
+		this.model_max_size = model_max_size;
+	}
+
+	public long getValueset_max_codes() {
+		return valueset_max_codes;
+	}
+
+	public void setValueset_max_codes(long valueset_max_codes) {
+		this.valueset_max_codes = valueset_max_codes;
+	}
+}
@@ -0,0 +1,40 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+public class CqlExecutorProperties {
+
+	public enum RejectionPolicy {
+		/** Run the rejected evaluation on the calling request thread */
+		CALLER_RUNS,
+		/** Fail the rejected evaluation */
+		ABORT
+	}
+
+	// 0 sizes the pool to the available processors
+	private int pool_size = 0;
+	private int queue_capacity = 1000;
+	private RejectionPolicy rejection_policy = RejectionPolicy.CALLER_RUNS;
+
+	public int getPool_size() {
+		return pool_size;
+	}
+
+	public void setPool_size(int pool_size) {
+		this.pool_size = pool_size;
+	}
+
+	public int getQueue_capacity() {
+		return queue_capacity;
+	}
+
+	public void setQueue_capacity(int queue_capacity) {
+		this.queue_capacity = queue_capacity;
+	}
+
+	public RejectionPolicy getRejection_policy() {
+		return rejection_policy;
+	}
+
+	public void setRejection_policy(RejectionPolicy rejection_policy) {
+		this.rejection_policy = rejection_policy;
+	}
+}
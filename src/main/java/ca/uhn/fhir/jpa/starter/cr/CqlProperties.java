@@ -10,6 +10,7 @@ public class CqlProperties {
 	private CqlRuntimeProperties runtime = new CqlRuntimeProperties();
 	private TerminologySettings terminology = new TerminologySettings();
 	private RetrieveSettings data = new RetrieveSettings();
+	private CqlCacheProperties cache = new CqlCacheProperties();
 
 	public Boolean getUse_embedded_libraries() {
 		return use_embedded_libraries;
@@ -50,4 +51,12 @@ public class CqlProperties {
 	public void setData(RetrieveSettings data) {
 		this.data = data;
 	}
+
+	public CqlCacheProperties getCache() {
+		return cache;
+	}
+
+	public void setCache(CqlCacheProperties cache) {
+		this.cache = cache;
+	}
 }
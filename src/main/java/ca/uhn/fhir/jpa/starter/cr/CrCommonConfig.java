@@ -6,10 +6,16 @@ import ca.uhn.fhir.jpa.cache.ResourceChangeListenerRegistryInterceptor;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.provider.ResourceProviderFactory;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
 import org.cqframework.cql.cql2elm.CqlCompilerOptions;
 import org.cqframework.cql.cql2elm.model.CompiledLibrary;
 import org.cqframework.cql.cql2elm.model.Model;
 import org.hl7.cql.model.ModelIdentifier;
+import org.hl7.elm.r1.Library;
 import org.hl7.elm.r1.VersionedIdentifier;
 import org.opencds.cqf.cql.engine.execution.CqlEngine;
 import org.opencds.cqf.cql.engine.runtime.Code;
@@ -23,6 +29,7 @@ import org.opencds.cqf.fhir.cr.measure.CareGapsProperties;
 import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
 import org.opencds.cqf.fhir.utility.ValidationProfile;
 import org.opencds.cqf.fhir.utility.client.TerminologyServerClientSettings;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
@@ -34,9 +41,11 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
 @Conditional({CrConfigCondition.class})
@@ -151,9 +160,28 @@ public class CrCommonConfig {
 
 	@Primary
 	@Bean
-	public ExecutorService cqlExecutor() {
-		CqlThreadFactory factory = new CqlThreadFactory();
-		ExecutorService executor = Executors.newFixedThreadPool(2, factory);
+	public ExecutorService cqlExecutor(CrProperties theCrProperties, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		CqlExecutorProperties properties = theCrProperties.getExecutor();
+		int poolSize = properties.getPool_size() > 0
+				? properties.getPool_size()
+				: Runtime.getRuntime().availableProcessors();
+		RejectedExecutionHandler rejectionHandler =
+				properties.getRejection_policy() == CqlExecutorProperties.RejectionPolicy.ABORT
+						? new ThreadPoolExecutor.AbortPolicy()
+						: new ThreadPoolExecutor.CallerRunsPolicy();
+		ExecutorService executor = new ThreadPoolExecutor(
+				poolSize,
+				poolSize,
+				0L,
+				TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(properties.getQueue_capacity()),
+				new CqlThreadFactory(),
+				rejectionHandler);
+		// Exports the queue depth, active threads and task durations as the cql.executor metrics
+		MeterRegistry meterRegistry = theMeterRegistry.getIfAvailable();
+		if (meterRegistry != null) {
+			executor = ExecutorServiceMetrics.monitor(meterRegistry, executor, "cql.executor");
+		}
 		executor = new DelegatingSecurityContextExecutorService(executor);
 
 		return executor;
@@ -188,19 +216,51 @@ public class CrCommonConfig {
 		return new PostInitProviderRegisterer(theRestfulServer, theResourceProviderFactory);
 	}
 
+	// The global caches are bounded Caffeine caches exposed as maps, so the CQL engine and the
+	// Elm/Code cache resource change listeners keep using them as before. Hits, misses and
+	// evictions are exported as the cql.libraries, cql.models and cql.valuesets cache metrics.
+
 	@Bean
-	public Map<VersionedIdentifier, CompiledLibrary> globalLibraryCache() {
-		return new ConcurrentHashMap<>();
+	public Map<VersionedIdentifier, CompiledLibrary> globalLibraryCache(
+			CrProperties theCrProperties, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		Cache<VersionedIdentifier, CompiledLibrary> cache = Caffeine.newBuilder()
+				.maximumWeight(theCrProperties.getCql().getCache().getLibrary_max_weight())
+				.weigher((VersionedIdentifier id, CompiledLibrary library) -> libraryWeight(library))
+				.recordStats()
+				.build();
+		theMeterRegistry.ifAvailable(registry -> CaffeineCacheMetrics.monitor(registry, cache, "cql.libraries"));
+		return cache.asMap();
 	}
 
 	@Bean
-	public Map<ModelIdentifier, Model> globalModelCache() {
-		return new ConcurrentHashMap<>();
+	public Map<ModelIdentifier, Model> globalModelCache(
+			CrProperties theCrProperties, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		Cache<ModelIdentifier, Model> cache = Caffeine.newBuilder()
+				.maximumSize(theCrProperties.getCql().getCache().getModel_max_size())
+				.recordStats()
+				.build();
+		theMeterRegistry.ifAvailable(registry -> CaffeineCacheMetrics.monitor(registry, cache, "cql.models"));
+		return cache.asMap();
 	}
 
 	@Bean
-	public Map<String, List<Code>> globalValueSetCache() {
-		return new ConcurrentHashMap<>();
+	public Map<String, List<Code>> globalValueSetCache(
+			CrProperties theCrProperties, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		Cache<String, List<Code>> cache = Caffeine.newBuilder()
+				.maximumWeight(theCrProperties.getCql().getCache().getValueset_max_codes())
+				.weigher((String url, List<Code> codes) -> Math.max(1, codes.size()))
+				.recordStats()
+				.build();
+		theMeterRegistry.ifAvailable(registry -> CaffeineCacheMetrics.monitor(registry, cache, "cql.valuesets"));
+		return cache.asMap();
+	}
+
+	private static int libraryWeight(CompiledLibrary theLibrary) {
+		Library library = theLibrary.getLibrary();
+		if (library == null || library.getStatements() == null) {
+			return 1;
+		}
+		return Math.max(1, library.getStatements().getDef().size());
 	}
 
 	@Bean
@@ -7,6 +7,7 @@ public class CrProperties {
 
 	private CareGapsProperties careGaps = new CareGapsProperties();
 	private CqlProperties cql = new CqlProperties();
+	private CqlExecutorProperties executor = new CqlExecutorProperties();
 
 	private TerminologyServerClientSettings terminologyServerClientSettings = new TerminologyServerClientSettings();
 
@@ -34,6 +35,14 @@ public class CrProperties {
 		this.cql = cql;
 	}
 
+	public CqlExecutorProperties getExecutor() {
+		return executor;
+	}
+
+	public void setExecutor(CqlExecutorProperties executor) {
+		this.executor = executor;
+	}
+
 	public TerminologyServerClientSettings getTerminologyServerClientSettings() {
 		return terminologyServerClientSettings;
 	}
@@ -0,0 +1,248 @@
+package ca.uhn.fhir.jpa.starter.gravity.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.ServerLogger;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Long-lived FHIR clients keyed by server base URL. Each base URL gets one
+ * IGenericClient backed by its own pooled, keep-alive HTTP client, so the
+ * referral and patient task interceptors reuse connections across calls
+ * instead of building a client (and mutating the shared FhirContext client
+ * factory) for every request. The latency of every request is recorded in the
+ * fhir.client.requests timer, tagged with the base URL and response status.
+ * The registry is bounded: clients idle for client_idle_ms, or the least
+ * recently used ones beyond max_clients, are closed with their connection
+ * pools and idle connection evictor threads. Callers lease a client for the
+ * duration of their requests; an evicted client is closed once its last lease
+ * is released, so eviction never closes a client under an in-flight request.
+ */
+@Component
+public class FhirClientRegistry {
+	private static final Logger logger = ServerLogger.getLogger();
+
+	public static final String REQUEST_TIMER = "fhir.client.requests";
+
+	@Autowired
+	AppProperties appProperties;
+
+	@Autowired
+	ObjectProvider<MeterRegistry> meterRegistry;
+
+	private Cache<String, PooledClient> clients;
+
+	private AppProperties.RestClient properties;
+
+	private MeterRegistry registry;
+
+	@PostConstruct
+	protected void postConstruct() {
+		properties = appProperties != null ? appProperties.getRest_client() : new AppProperties.RestClient();
+		registry = meterRegistry != null ? meterRegistry.getIfAvailable() : null;
+		clients = Caffeine.newBuilder()
+				.maximumSize(properties.getMax_clients())
+				.expireAfterAccess(properties.getClient_idle_ms(), TimeUnit.MILLISECONDS)
+				.scheduler(Scheduler.systemScheduler())
+				// retire on the evicting thread, so preDestroy returns with every unleased client closed
+				.executor(Runnable::run)
+				.<String, PooledClient>removalListener((serverBaseUrl, client, cause) -> {
+					if (client != null) {
+						logger.info("FhirClientRegistry::close: retiring client for " + serverBaseUrl + " (" + cause + ")");
+						client.retire();
+					}
+				})
+				.build();
+	}
+
+	@PreDestroy
+	protected void preDestroy() {
+		clients.invalidateAll();
+		clients.cleanUp();
+	}
+
+	/**
+	 * Lease the client for the given server, creating it on first use. The
+	 * client stays open until the lease is closed, even if it is evicted
+	 * meanwhile.
+	 *
+	 * @param serverBaseUrl - the base URL of the FHIR server
+	 * @return the lease of the shared client for that base URL
+	 */
+	public Lease lease(String serverBaseUrl) {
+		String key = normalize(serverBaseUrl);
+		while (true) {
+			PooledClient client = clients.get(key, this::createClient);
+			// A client evicted and closed since the lookup is replaced on the next one
+			if (client.acquire()) return new Lease(client);
+		}
+	}
+
+	/**
+	 * Close the client for the given server and its pooled connections, e.g. once
+	 * a receiver no longer has active tasks
+	 *
+	 * @param serverBaseUrl - the base URL of the FHIR server
+	 */
+	public void evict(String serverBaseUrl) {
+		clients.invalidate(normalize(serverBaseUrl));
+	}
+
+	private PooledClient createClient(String serverBaseUrl) {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(properties.getMax_connections_per_route());
+		connectionManager.setDefaultMaxPerRoute(properties.getMax_connections_per_route());
+
+		long keepAlive = properties.getKeep_alive_ms();
+		CloseableHttpClient httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectTimeout(properties.getConnect_timeout_ms())
+						.setSocketTimeout(properties.getSocket_timeout_ms())
+						.setConnectionRequestTimeout(properties.getConnection_request_timeout_ms())
+						.build())
+				.setKeepAliveStrategy((response, context) -> {
+					long requested = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+					return requested > 0 ? Math.min(requested, keepAlive) : keepAlive;
+				})
+				.evictExpiredConnections()
+				.evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+				.useSystemProperties()
+				.build();
+
+		// Requests are sent through the client factory of the FhirContext, so every
+		// client needs a context of its own for the pooled HTTP client to be used
+		FhirContext ctx = FhirContext.forR4();
+		ApacheRestfulClientFactory factory = new ApacheRestfulClientFactory(ctx);
+		factory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+		factory.setHttpClient(httpClient);
+		ctx.setRestfulClientFactory(factory);
+		IGenericClient client = factory.newGenericClient(serverBaseUrl);
+		if (registry != null) {
+			client.registerInterceptor(new LatencyInterceptor(serverBaseUrl, registry));
+		}
+		logger.info("FhirClientRegistry::createClient: created pooled client for " + serverBaseUrl);
+		return new PooledClient(client, httpClient);
+	}
+
+	private static String normalize(String serverBaseUrl) {
+		return serverBaseUrl.endsWith("/") ? serverBaseUrl.substring(0, serverBaseUrl.length() - 1) : serverBaseUrl;
+	}
+
+	/**
+	 * A client in use. Closing the lease releases the client, it does not close
+	 * it.
+	 */
+	public static class Lease implements AutoCloseable {
+		private final PooledClient client;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Lease(PooledClient client) {
+			this.client = client;
+		}
+
+		public IGenericClient getClient() {
+			return client.client;
+		}
+
+		@Override
+		public void close() {
+			if (released.compareAndSet(false, true)) client.release();
+		}
+	}
+
+	/**
+	 * Counts the leases of a client. A client removed from the registry is
+	 * retired and closed as soon as no lease holds it.
+	 */
+	private static class PooledClient {
+		private final IGenericClient client;
+		private final CloseableHttpClient httpClient;
+		private int leases = 0;
+		private boolean retired = false;
+		private boolean closed = false;
+
+		PooledClient(IGenericClient client, CloseableHttpClient httpClient) {
+			this.client = client;
+			this.httpClient = httpClient;
+		}
+
+		synchronized boolean acquire() {
+			if (closed) return false;
+			leases++;
+			return true;
+		}
+
+		synchronized void release() {
+			leases--;
+			if (retired && leases == 0) close();
+		}
+
+		synchronized void retire() {
+			retired = true;
+			if (leases == 0) close();
+		}
+
+		private void close() {
+			closed = true;
+			try {
+				httpClient.close();
+			} catch (IOException e) {
+				logger.warning("FhirClientRegistry::close: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Records the time from sending a request until its response headers arrive
+	 */
+	private static class LatencyInterceptor implements IClientInterceptor {
+		private final String serverBaseUrl;
+		private final MeterRegistry registry;
+
+		LatencyInterceptor(String serverBaseUrl, MeterRegistry registry) {
+			this.serverBaseUrl = serverBaseUrl;
+			this.registry = registry;
+		}
+
+		@Override
+		public void interceptRequest(IHttpRequest theRequest) {
+			// timing starts in the HTTP layer, see IHttpResponse.getRequestStopWatch
+		}
+
+		@Override
+		public void interceptResponse(IHttpResponse theResponse) {
+			Timer.builder(REQUEST_TIMER)
+					.description("Latency of FHIR client requests per server base URL")
+					.tag("server", serverBaseUrl)
+					.tag("status", String.valueOf(theResponse.getStatus()))
+					.register(registry)
+					.record(theResponse.getRequestStopWatch().getMillis(), TimeUnit.MILLISECONDS);
+		}
+	}
+}
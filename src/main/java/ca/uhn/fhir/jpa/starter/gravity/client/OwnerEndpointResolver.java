@@ -0,0 +1,159 @@
+package ca.uhn.fhir.jpa.starter.gravity.client;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.ServerLogger;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.r4.model.Endpoint;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Reference;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.logging.Logger;
+
+/**
+ * Resolves the FHIR server base URL of a referral Task owner from its
+ * Organization, read through the local DAOs instead of an HTTP call to this
+ * server. The URL is the Organization's contact telecom of system url, or else
+ * the address of its first Endpoint. Results (including owners without a URL)
+ * are cached per Organization id; a resource change listener evicts an
+ * Organization when it changes and clears the cache when any Endpoint changes.
+ * Changes are picked up on the next listener refresh, so a stale URL can be
+ * served for a few seconds after an update.
+ */
+@Component
+public class OwnerEndpointResolver implements IResourceChangeListener {
+	private static final Logger logger = ServerLogger.getLogger();
+
+	private static final long REFRESH_INTERVAL_MS = 1000;
+	private static final int CACHE_MAX_SIZE = 10000;
+	private static final Duration CACHE_TTL = Duration.ofHours(1);
+
+	@Autowired
+	DaoRegistry daoRegistry;
+
+	@Autowired
+	IResourceChangeListenerRegistry resourceChangeListenerRegistry;
+
+	@Autowired
+	ObjectProvider<MeterRegistry> meterRegistry;
+
+	private final Cache<String, Optional<String>> serverBaseUrls = Caffeine.newBuilder()
+			.maximumSize(CACHE_MAX_SIZE)
+			.expireAfterWrite(CACHE_TTL)
+			.recordStats()
+			.build();
+
+	@PostConstruct
+	protected void postConstruct() {
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener(
+				"Organization", SearchParameterMap.newSynchronous(), this, REFRESH_INTERVAL_MS);
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener(
+				"Endpoint", SearchParameterMap.newSynchronous(), this, REFRESH_INTERVAL_MS);
+		MeterRegistry registry = meterRegistry != null ? meterRegistry.getIfAvailable() : null;
+		if (registry != null) {
+			CaffeineCacheMetrics.monitor(registry, serverBaseUrls, "referral.owners");
+		}
+	}
+
+	@PreDestroy
+	protected void preDestroy() {
+		resourceChangeListenerRegistry.unregisterResourceResourceChangeListener(this);
+	}
+
+	/**
+	 * Get the FHIR server base URL of a local Organization
+	 *
+	 * @param organizationId - the id of the Organization on this server
+	 * @return the server base URL or null if the Organization is unknown or has
+	 *         none
+	 */
+	public String getServerBaseUrl(String organizationId) {
+		return serverBaseUrls.get(organizationId, this::resolve).orElse(null);
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {
+		// Nothing is cached before the first lookup
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		boolean endpointChanged = false;
+		for (IIdType id : theResourceChangeEvent.getUpdatedResourceIds()) {
+			endpointChanged |= invalidate(id);
+		}
+		for (IIdType id : theResourceChangeEvent.getDeletedResourceIds()) {
+			endpointChanged |= invalidate(id);
+		}
+		for (IIdType id : theResourceChangeEvent.getCreatedResourceIds()) {
+			// A new Organization may replace a cached miss
+			endpointChanged |= invalidate(id);
+		}
+		if (endpointChanged) {
+			serverBaseUrls.invalidateAll();
+		}
+	}
+
+	private boolean invalidate(IIdType id) {
+		if ("Endpoint".equals(id.getResourceType())) {
+			return true;
+		}
+		serverBaseUrls.invalidate(id.getIdPart());
+		return false;
+	}
+
+	private Optional<String> resolve(String organizationId) {
+		Organization organization = read(Organization.class, "Organization", organizationId);
+		if (organization == null) {
+			logger.warning("OwnerEndpointResolver::resolve: Organization/" + organizationId + " not found");
+			return Optional.empty();
+		}
+		for (ContactPoint telecom : organization.getContactFirstRep().getTelecom()) {
+			if (telecom.hasSystem() && telecom.getSystem().equals(ContactPointSystem.URL)) {
+				return Optional.ofNullable(telecom.getValue());
+			}
+		}
+		for (Reference reference : organization.getEndpoint()) {
+			if (!reference.hasReference()) {
+				continue;
+			}
+			Endpoint endpoint = read(Endpoint.class, "Endpoint", new IdType(reference.getReference()).getIdPart());
+			if (endpoint != null && endpoint.hasAddress()) {
+				return Optional.of(endpoint.getAddress());
+			}
+		}
+		return Optional.empty();
+	}
+
+	private <T extends IBaseResource> T read(Class<T> type, String resourceType, String id) {
+		IFhirResourceDao<T> dao = daoRegistry.getResourceDao(type);
+		try {
+			return dao.read(new IdType(resourceType, id), new SystemRequestDetails());
+		} catch (ResourceNotFoundException | ResourceGoneException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package ca.uhn.fhir.jpa.starter.gravity.cluster;
+
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.ServerLogger;
+import ca.uhn.fhir.jpa.starter.authorization.AuthorizationController;
+import ca.uhn.fhir.jpa.starter.authorization.Database;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Splits the active referral tasks into shards and leases a fair share of them
+ * to this node through the PollerLeases table, so replicas sharing the oauth
+ * database poll and deliver disjoint sets of tasks. Every node renews its
+ * leases and heartbeat three times per lease TTL; a node which stops renewing
+ * drops out of the live node count and its leases expire, after which the
+ * remaining nodes claim them. A node holding more than its fair share (e.g.
+ * after another node joined) releases the surplus.
+ */
+public class ShardLeaseManager {
+	private static final Logger logger = ServerLogger.getLogger();
+
+	private final String nodeId;
+	private final int shardCount;
+	private final long leaseTtl;
+	private final ScheduledExecutorService scheduler;
+	private final Supplier<Database> database;
+
+	private boolean leasesInitialized = false;
+	private volatile Set<Integer> ownedShards = Set.of();
+	private volatile long ownedUntil = 0;
+
+	public ShardLeaseManager(AppProperties.Referral.Cluster properties) {
+		this(properties, AuthorizationController::getDB);
+	}
+
+	/**
+	 * @param properties - the cluster configuration
+	 * @param database   - the database holding the leases, null until it is available
+	 */
+	public ShardLeaseManager(AppProperties.Referral.Cluster properties, Supplier<Database> database) {
+		this.database = database;
+		this.nodeId = properties.getNode_id() != null ? properties.getNode_id() : defaultNodeId();
+		this.shardCount = properties.getShard_count();
+		this.leaseTtl = properties.getLease_ttl_ms();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "referral-shard-leases");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public void start() {
+		scheduler.scheduleWithFixedDelay(this::renew, 0, leaseTtl / 3, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop renewing and release the leases so other nodes take them over without
+	 * waiting for them to expire
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+		Database db = database.get();
+		if (db == null) return;
+		for (Integer shard : ownedShards) {
+			db.releaseLease(shard, nodeId);
+		}
+		ownedShards = Set.of();
+	}
+
+	/**
+	 * @param taskId - the referral task ID on this server
+	 * @return true if this node currently holds the lease of the task's shard
+	 */
+	public boolean ownsTask(String taskId) {
+		if (System.currentTimeMillis() > ownedUntil) return false;
+		return ownedShards.contains(shardOf(taskId));
+	}
+
+	public int shardOf(String taskId) {
+		return Math.floorMod(taskId.hashCode(), shardCount);
+	}
+
+	public String getNodeId() {
+		return this.nodeId;
+	}
+
+	private void renew() {
+		Database db = database.get();
+		if (db == null) return;
+		try {
+			if (!leasesInitialized) {
+				db.initializeLeases(shardCount);
+				leasesInitialized = true;
+			}
+			long now = System.currentTimeMillis();
+			long expiresAt = now + leaseTtl;
+			int liveNodes = db.heartbeat(nodeId, now, expiresAt);
+			int fairShare = (shardCount + liveNodes - 1) / liveNodes;
+
+			List<Integer> owned = new ArrayList<>(db.renewLeases(nodeId, now, expiresAt));
+			while (owned.size() > fairShare) {
+				db.releaseLease(owned.remove(owned.size() - 1), nodeId);
+			}
+			if (owned.size() < fairShare) {
+				for (Integer shard : db.readClaimableShards(now)) {
+					if (owned.size() >= fairShare) break;
+					if (db.claimLease(shard, nodeId, now, expiresAt)) owned.add(shard);
+				}
+			}
+
+			Set<Integer> shards = Set.copyOf(owned);
+			if (!shards.equals(ownedShards)) {
+				logger.info("ShardLeaseManager::Node " + nodeId + " of " + liveNodes + " now owns shards " + owned);
+			}
+			ownedShards = shards;
+			// Stop acting on the shards a renewal interval before the leases expire,
+			// leaving room for a missed renewal and clock skew between nodes
+			ownedUntil = expiresAt - leaseTtl / 3;
+		} catch (Exception e) {
+			logger.severe("ShardLeaseManager::Failed to renew leases of node " + nodeId + ": " + e.getMessage());
+		}
+	}
+
+	private static String defaultNodeId() {
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			host = "node";
+		}
+		return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+	}
+}
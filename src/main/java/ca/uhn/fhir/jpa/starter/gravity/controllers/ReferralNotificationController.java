@@ -0,0 +1,91 @@
+package ca.uhn.fhir.jpa.starter.gravity.controllers;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.ServerLogger;
+import ca.uhn.fhir.jpa.starter.authorization.AuthorizationController;
+import ca.uhn.fhir.jpa.starter.gravity.interceptors.PostReferralTaskInterceptor;
+import ca.uhn.fhir.jpa.starter.gravity.models.ActiveTask;
+import ca.uhn.fhir.parser.DataFormatException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Task;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.logging.Logger;
+
+/**
+ * Receives rest-hook notifications from the Subscriptions created on receiver
+ * servers for referral Tasks (see PostReferralTaskInterceptor). With a
+ * application/fhir+json payload the receiver updates {endpoint}/Task/{id} with
+ * the current receiver Task; payload-less notifications (handshakes and
+ * heartbeats) are acknowledged without further processing.
+ */
+@RestController
+public class ReferralNotificationController {
+	private static final Logger logger = ServerLogger.getLogger();
+	private static final String BEARER_PREFIX = "Bearer ";
+
+	private final FhirContext ctx = FhirContext.forR4Cached();
+
+	@Autowired
+	PostReferralTaskInterceptor postReferralTaskInterceptor;
+
+	@PostMapping(value = PostReferralTaskInterceptor.NOTIFICATION_PATH)
+	public ResponseEntity<String> postNotification() {
+		return ResponseEntity.ok().build();
+	}
+
+	@PutMapping(value = PostReferralTaskInterceptor.NOTIFICATION_PATH + "/Task/{id}")
+	public ResponseEntity<String> putTaskNotification(
+			@PathVariable("id") String id,
+			@RequestHeader(name = "Authorization", required = false) String authorization,
+			@RequestBody String body) {
+		logger.info("ReferralNotificationController::Received notification for receiver task " + id);
+		ActiveTask activeTask = AuthorizationController.getDB().readActiveTaskByExternalId(id);
+		if (activeTask == null) {
+			return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Task " + id + " is not tracked");
+		}
+		if (!isAuthorized(activeTask, authorization)) {
+			return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+		}
+
+		Task receiverTask;
+		try {
+			IBaseResource resource = ctx.newJsonParser().parseResource(body);
+			if (!(resource instanceof Task) || !id.equals(resource.getIdElement().getIdPart())) {
+				return ResponseEntity.badRequest().body("Notification payload must be Task " + id);
+			}
+			receiverTask = (Task) resource;
+		} catch (DataFormatException e) {
+			return ResponseEntity.badRequest().body(e.getMessage());
+		}
+
+		try {
+			if (!postReferralTaskInterceptor.handleReceiverNotification(activeTask, receiverTask)) {
+				logger.severe("Failed to apply notification for receiver task " + id);
+				return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+			}
+		} catch (Exception e) {
+			// Let the receiver retry the delivery, polling reconciles it otherwise
+			logger.severe("Failed to apply notification for receiver task " + id + ": " + e.getMessage());
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+		}
+		return ResponseEntity.ok().build();
+	}
+
+	private boolean isAuthorized(ActiveTask activeTask, String authorization) {
+		if (activeTask.getNotificationToken() == null || authorization == null) return false;
+		String expected = BEARER_PREFIX + activeTask.getNotificationToken();
+		return MessageDigest.isEqual(
+				expected.getBytes(StandardCharsets.UTF_8), authorization.getBytes(StandardCharsets.UTF_8));
+	}
+}
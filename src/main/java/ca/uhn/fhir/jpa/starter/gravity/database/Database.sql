@@ -24,4 +24,33 @@ CREATE TABLE IF NOT EXISTS `ActiveTasks` (
   "timestamp" datetime DEFAULT CURRENT_TIMESTAMP
 );
 
+ALTER TABLE `ActiveTasks` ADD COLUMN IF NOT EXISTS "subscriptionId" varchar DEFAULT NULL;
+ALTER TABLE `ActiveTasks` ADD COLUMN IF NOT EXISTS "notificationToken" varchar DEFAULT NULL;
+ALTER TABLE `ActiveTasks` ADD COLUMN IF NOT EXISTS "externalVersionId" varchar DEFAULT NULL;
+ALTER TABLE `ActiveTasks` ADD COLUMN IF NOT EXISTS "externalLastUpdated" varchar DEFAULT NULL;
+
+CREATE TABLE IF NOT EXISTS `TaskOutbox` (
+  "id" varchar PRIMARY KEY,
+  "taskId" varchar NOT NULL,
+  "receiverUrl" varchar NOT NULL,
+  "payload" clob NOT NULL,
+  "attempts" int DEFAULT 0,
+  "nextAttempt" bigint DEFAULT 0,
+  "lastError" varchar DEFAULT NULL,
+  "timestamp" datetime DEFAULT CURRENT_TIMESTAMP
+);
+
+ALTER TABLE `TaskOutbox` ADD COLUMN IF NOT EXISTS "shard" int DEFAULT NULL;
+
+CREATE TABLE IF NOT EXISTS `PollerLeases` (
+  "shard" int PRIMARY KEY,
+  "owner" varchar DEFAULT NULL,
+  "expiresAt" bigint DEFAULT 0
+);
+
+CREATE TABLE IF NOT EXISTS `PollerNodes` (
+  "nodeId" varchar PRIMARY KEY,
+  "expiresAt" bigint DEFAULT 0
+);
+
 COMMIT;
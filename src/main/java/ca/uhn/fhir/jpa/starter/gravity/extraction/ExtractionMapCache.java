@@ -0,0 +1,190 @@
+package ca.uhn.fhir.jpa.starter.gravity.extraction;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.ServerLogger;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriParam;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.MetadataResource;
+import org.hl7.fhir.r4.model.Questionnaire;
+import org.hl7.fhir.r4.model.StructureMap;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Questionnaires resolved to the StructureMap of their
+ * sdc-questionnaire-targetStructureMap extension, keyed by the Questionnaire
+ * canonical (url or url|version) named in the patient Task. Both resources are
+ * read through the local DAOs and the StructureMap is kept converted to the R5
+ * model used by the transform engines, so screening questionnaires reused for
+ * every patient are looked up and converted once. A resource change listener
+ * on Questionnaire and StructureMap evicts the entries built from a changed
+ * resource, and clears the cache when one is created since a new version can
+ * change which resource a canonical resolves to.
+ */
+@Component
+public class ExtractionMapCache implements IResourceChangeListener {
+	private static final Logger logger = ServerLogger.getLogger();
+
+	private static final String TARGET_STRUCTURE_MAP =
+			"http://hl7.org/fhir/uv/sdc/StructureDefinition/sdc-questionnaire-targetStructureMap";
+
+	private static final long REFRESH_INTERVAL_MS = 1000;
+	private static final int CACHE_MAX_SIZE = 500;
+
+	@Autowired
+	DaoRegistry daoRegistry;
+
+	@Autowired
+	IResourceChangeListenerRegistry resourceChangeListenerRegistry;
+
+	@Autowired
+	ObjectProvider<MeterRegistry> meterRegistry;
+
+	private final Cache<String, ExtractionMap> maps =
+			Caffeine.newBuilder().maximumSize(CACHE_MAX_SIZE).recordStats().build();
+
+	/**
+	 * The StructureMap to transform the responses of one Questionnaire with
+	 */
+	public static class ExtractionMap {
+		private final String questionnaireId;
+		private final String structureMapId;
+		private final org.hl7.fhir.r5.model.StructureMap structureMap;
+
+		ExtractionMap(String questionnaireId, String structureMapId, org.hl7.fhir.r5.model.StructureMap structureMap) {
+			this.questionnaireId = questionnaireId;
+			this.structureMapId = structureMapId;
+			this.structureMap = structureMap;
+		}
+
+		public org.hl7.fhir.r5.model.StructureMap getStructureMap() {
+			return structureMap;
+		}
+
+		/**
+		 * @return the canonical the transform engine finds the map by
+		 */
+		public String getStructureMapCanonical() {
+			return structureMap.hasVersion()
+					? structureMap.getUrl() + "|" + structureMap.getVersion()
+					: structureMap.getUrl();
+		}
+	}
+
+	@PostConstruct
+	protected void postConstruct() {
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener(
+				"Questionnaire", SearchParameterMap.newSynchronous(), this, REFRESH_INTERVAL_MS);
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener(
+				"StructureMap", SearchParameterMap.newSynchronous(), this, REFRESH_INTERVAL_MS);
+		MeterRegistry registry = meterRegistry != null ? meterRegistry.getIfAvailable() : null;
+		if (registry != null) {
+			CaffeineCacheMetrics.monitor(registry, maps, "extraction.maps");
+		}
+	}
+
+	@PreDestroy
+	protected void preDestroy() {
+		resourceChangeListenerRegistry.unregisterResourceResourceChangeListener(this);
+	}
+
+	/**
+	 * Get the StructureMap for the responses of a Questionnaire
+	 *
+	 * @param questionnaireCanonical - the Questionnaire url, optionally with
+	 *                               |version
+	 * @return the resolved map
+	 * @throws IllegalStateException when the Questionnaire, its
+	 *                               targetStructureMap extension or the
+	 *                               StructureMap cannot be found
+	 */
+	public ExtractionMap get(String questionnaireCanonical) {
+		return maps.get(questionnaireCanonical, this::resolve);
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {
+		// Nothing is cached before the first extraction
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		if (!theResourceChangeEvent.getCreatedResourceIds().isEmpty()) {
+			maps.invalidateAll();
+			return;
+		}
+		evict(theResourceChangeEvent.getUpdatedResourceIds());
+		evict(theResourceChangeEvent.getDeletedResourceIds());
+	}
+
+	private void evict(List<IIdType> ids) {
+		for (IIdType id : ids) {
+			String changed = id.toUnqualifiedVersionless().getValue();
+			maps.asMap()
+					.values()
+					.removeIf(map -> changed.equals(map.questionnaireId) || changed.equals(map.structureMapId));
+		}
+	}
+
+	private ExtractionMap resolve(String questionnaireCanonical) {
+		Questionnaire questionnaire = search(Questionnaire.class, questionnaireCanonical);
+		if (questionnaire == null) {
+			throw new IllegalStateException("Questionnaire " + questionnaireCanonical + " couldn't be found");
+		}
+		Extension extension = questionnaire.getExtensionByUrl(TARGET_STRUCTURE_MAP);
+		if (extension == null || !(extension.getValue() instanceof CanonicalType)) {
+			throw new IllegalStateException(
+					"Questionnaire " + questionnaireCanonical + " has no sdc-questionnaire-targetStructureMap");
+		}
+		String structureMapCanonical = ((CanonicalType) extension.getValue()).getValue();
+		StructureMap structureMap = search(StructureMap.class, structureMapCanonical);
+		if (structureMap == null || structureMap.isEmpty()) {
+			throw new IllegalStateException("StructureMap couldn't be found for sdc-questionnaire-targetStructureMap url "
+					+ structureMapCanonical);
+		}
+		logger.info("ExtractionMapCache::resolve: " + questionnaireCanonical + " -> " + structureMapCanonical);
+		return new ExtractionMap(
+				questionnaire.getIdElement().toUnqualifiedVersionless().getValue(),
+				structureMap.getIdElement().toUnqualifiedVersionless().getValue(),
+				(org.hl7.fhir.r5.model.StructureMap) VersionConvertorFactory_40_50.convertResource(structureMap));
+	}
+
+	/**
+	 * Find the most recently updated resource with the given canonical
+	 */
+	private <T extends MetadataResource> T search(Class<T> type, String canonical) {
+		String[] parts = canonical.split("\\|", 2);
+		SearchParameterMap params = SearchParameterMap.newSynchronous().add("url", new UriParam(parts[0]));
+		if (parts.length > 1) {
+			params.add("version", new TokenParam(parts[1]));
+		}
+		params.setSort(new SortSpec("_lastUpdated", SortOrderEnum.DESC));
+		params.setCount(1);
+		List<IBaseResource> found =
+				daoRegistry.getResourceDao(type).search(params, new SystemRequestDetails()).getResources(0, 1);
+		return found.isEmpty() ? null : type.cast(found.get(0));
+	}
+}
@@ -0,0 +1,421 @@
+package ca.uhn.fhir.jpa.starter.gravity.extraction;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.ServerLogger;
+import ca.uhn.fhir.jpa.starter.gravity.extraction.ExtractionMapCache.ExtractionMap;
+import ca.uhn.fhir.jpa.starter.gravity.transform.TransformEngine;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Task;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.JsonParser;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.IParser;
+import org.hl7.fhir.utilities.ByteProvider;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Extracts the resources of a completed patient Task's QuestionnaireResponse
+ * with the StructureMap named by the Questionnaire's
+ * sdc-questionnaire-targetStructureMap extension (see ExtractionMapCache).
+ * Extractions are queued once the Task update commits and run on a worker
+ * pool, so the update does not wait for the reads, the transform and the
+ * writes. The extracted resources are created through the system DAO in a
+ * single transaction, together with the Task update recording the outcome. A
+ * failed extraction is retried with exponential backoff up
+ * to max_attempts times, unless the failure cannot go away by retrying (a
+ * missing Questionnaire or StructureMap, a transform error or a rejected
+ * request). The outcome is recorded on the Task as an extraction-status output
+ * (completed or failed) followed by an extracted-resource output for every
+ * created resource; a Task which already has an extraction-status output is
+ * not extracted again. Queue depth, running extractions, outcomes and
+ * durations are exposed as extraction.* metrics.
+ */
+@Component
+public class QuestionnaireExtractionService {
+	private static final Logger logger = ServerLogger.getLogger();
+
+	public static final String EXTRACTION_STATUS = "extraction-status";
+	public static final String EXTRACTED_RESOURCE = "extracted-resource";
+
+	private static final int RECORD_STATUS_ATTEMPTS = 5;
+
+	@Autowired
+	AppProperties appProperties;
+
+	@Autowired
+	ExtractionMapCache extractionMaps;
+
+	@Autowired
+	TransformEngine transformEngine;
+
+	@Autowired
+	DaoRegistry daoRegistry;
+
+	@Autowired
+	FhirContext fhirContext;
+
+	@Autowired
+	ObjectProvider<MeterRegistry> meterRegistry;
+
+	private ThreadPoolExecutor workers;
+
+	private ScheduledExecutorService retries;
+
+	private final AtomicInteger running = new AtomicInteger();
+
+	// Tasks queued, running or waiting for a retry, so another update does not extract them twice
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+	private Counter completed;
+	private Counter failed;
+	private Counter rejected;
+	private Counter retried;
+	private Timer duration;
+
+	@PostConstruct
+	protected void postConstruct() {
+		AppProperties.Extraction properties = appProperties.getExtraction();
+		AtomicInteger threadCount = new AtomicInteger();
+		workers = new ThreadPoolExecutor(
+				properties.getPool_size(),
+				properties.getPool_size(),
+				0L,
+				TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(properties.getQueue_size()),
+				runnable -> {
+					Thread thread = new Thread(runnable, "questionnaire-extraction-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "questionnaire-extraction-retry");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		MeterRegistry registry = meterRegistry != null ? meterRegistry.getIfAvailable() : null;
+		if (registry != null) {
+			Gauge.builder("extraction.queue.depth", workers, executor -> executor.getQueue().size())
+					.description("Extractions waiting for a worker")
+					.register(registry);
+			Gauge.builder("extraction.running", running, AtomicInteger::get)
+					.description("Extractions in progress")
+					.register(registry);
+			completed = Counter.builder("extraction.requests").tag("outcome", "completed").register(registry);
+			failed = Counter.builder("extraction.requests").tag("outcome", "failed").register(registry);
+			rejected = Counter.builder("extraction.requests").tag("outcome", "rejected").register(registry);
+			retried = Counter.builder("extraction.requests").tag("outcome", "retried").register(registry);
+			duration = Timer.builder("extraction.duration")
+					.description("Time from dequeuing an extraction until its outcome is recorded")
+					.register(registry);
+		}
+	}
+
+	@PreDestroy
+	protected void preDestroy() {
+		retries.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Check whether the Task's QuestionnaireResponse should be extracted
+	 *
+	 * @param task - the completed patient Task
+	 * @return false when the Task has no QuestionnaireResponse output or was
+	 *         already extracted
+	 */
+	public boolean isExtractable(Task task) {
+		if (!task.hasOutput()
+				|| !"questionnaire-response"
+						.equalsIgnoreCase(task.getOutputFirstRep().getType().getCodingFirstRep().getCode())) {
+			return false;
+		}
+		return !hasExtractionStatus(task);
+	}
+
+	private static boolean hasExtractionStatus(Task task) {
+		return task.getOutput().stream().anyMatch(output -> EXTRACTION_STATUS.equals(output.getType().getText()));
+	}
+
+	/**
+	 * Queue the extraction of the Task's QuestionnaireResponse. Within a
+	 * transaction it is queued after the commit, and dropped on rollback.
+	 *
+	 * @param task - the completed patient Task
+	 */
+	public void enqueue(Task task) {
+		ExtractionRequest request = new ExtractionRequest(task);
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			submit(request);
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+			@Override
+			public void afterCommit() {
+				submit(request);
+			}
+		});
+	}
+
+	private void submit(ExtractionRequest request) {
+		if (request.attempt == 0 && !pending.add(request.taskId)) {
+			logger.info("QuestionnaireExtractionService::submit: Task/" + request.taskId + " is already queued");
+			return;
+		}
+		try {
+			workers.execute(() -> run(request));
+			logger.info("QuestionnaireExtractionService::submit: queued extraction for Task/" + request.taskId);
+		} catch (RejectedExecutionException e) {
+			increment(rejected);
+			pending.remove(request.taskId);
+			// Nothing is recorded on the Task, so the next completed update queues it again
+			logger.severe("QuestionnaireExtractionService::submit: queue full, Task/" + request.taskId
+					+ " is not extracted");
+		}
+	}
+
+	private void run(ExtractionRequest request) {
+		running.incrementAndGet();
+		long start = System.nanoTime();
+		request.attempt++;
+		boolean retrying = false;
+		try {
+			extract(request);
+			increment(completed);
+		} catch (Exception e) {
+			AppProperties.Extraction properties = appProperties.getExtraction();
+			if (isTransient(e) && request.attempt < properties.getMax_attempts()) {
+				long delay = properties.getRetry_backoff_ms() << (request.attempt - 1);
+				logger.warning("QuestionnaireExtractionService::run: attempt " + request.attempt + " failed for Task/"
+						+ request.taskId + ", retrying in " + delay + " ms: " + e.getMessage());
+				increment(retried);
+				retries.schedule(() -> submit(request), delay, TimeUnit.MILLISECONDS);
+				retrying = true;
+				return;
+			}
+			logger.severe("QuestionnaireExtractionService::run: extraction failed for Task/" + request.taskId
+					+ " after " + request.attempt + " attempts: " + e.getMessage());
+			recordFailure(request.taskId);
+			increment(failed);
+		} finally {
+			if (!retrying) {
+				pending.remove(request.taskId);
+			}
+			running.decrementAndGet();
+			if (duration != null) {
+				duration.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+	private void extract(ExtractionRequest request) throws Exception {
+		ExtractionMap map = extractionMaps.get(request.questionnaireUrl);
+		String mapCanonical = map.getStructureMapCanonical();
+		logger.info("Questionnaire url " + request.questionnaireUrl + ", StructureMap url " + mapCanonical);
+
+		QuestionnaireResponse questionnaireResponse = daoRegistry
+				.getResourceDao(QuestionnaireResponse.class)
+				.read(new IdType(request.questionnaireResponseRef), new SystemRequestDetails());
+		byte[] responseJson = fhirContext
+				.newJsonParser()
+				.encodeResourceToString(questionnaireResponse)
+				.getBytes(StandardCharsets.UTF_8);
+		String source = "QuestionnaireResponse/" + questionnaireResponse.getIdElement().getIdPart();
+		logger.info("Starting transform of " + source);
+		byte[] transformed = transformEngine.execute(validationEngine -> {
+			IWorkerContext context = validationEngine.getContext();
+			if (context.fetchResource(org.hl7.fhir.r5.model.StructureMap.class, mapCanonical) != map.getStructureMap()) {
+				// First use of this map (or of its latest version) on this engine
+				context.cacheResource(map.getStructureMap());
+			}
+			Element result = validationEngine.transform(ByteProvider.forBytes(responseJson), FhirFormat.JSON, mapCanonical);
+			if (!result.fhirType().equals("Bundle")) {
+				return null;
+			}
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			new JsonParser(context).compose(result, outputStream, IParser.OutputStyle.NORMAL, null);
+			return outputStream.toByteArray();
+		});
+		Bundle transaction;
+		if (transformed == null) {
+			logger.info("Transform of " + source + " did not produce a Bundle, nothing to create");
+			transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+		} else {
+			transaction = toTransaction(transformed);
+		}
+
+		List<IIdType> created = commit(request.taskId, "completed", transaction);
+		for (IIdType id : created) {
+			logger.info("Transformed resource Id : " + id);
+		}
+		logger.info("Completed transform of " + source);
+	}
+
+	/**
+	 * Turn the transform output into a transaction creating all of its resources,
+	 * so they are written together or not at all. The transform's fullUrls are
+	 * kept so references between the extracted resources are resolved.
+	 */
+	private Bundle toTransaction(byte[] transformed) {
+		Bundle extracted = fhirContext.newJsonParser().parseResource(Bundle.class, new ByteArrayInputStream(transformed));
+		Bundle transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+		for (Bundle.BundleEntryComponent entry : extracted.getEntry()) {
+			if (!entry.hasResource()) {
+				continue;
+			}
+			Resource resource = entry.getResource();
+			transaction.addEntry()
+					.setFullUrl(entry.hasFullUrl() ? entry.getFullUrl() : IdType.newRandomUuid().getValue())
+					.setResource(resource)
+					.getRequest()
+					.setMethod(Bundle.HTTPVerb.POST)
+					.setUrl(resource.fhirType());
+		}
+		return transaction;
+	}
+
+	/**
+	 * Whether retrying may succeed. A missing Questionnaire or StructureMap
+	 * (IllegalStateException), a transform error and a rejected request fail
+	 * the same way again; a version conflict or a server error may not.
+	 */
+	private static boolean isTransient(Exception e) {
+		if (e instanceof IllegalStateException || e instanceof FHIRException) {
+			return false;
+		}
+		if (e instanceof BaseServerResponseException) {
+			int status = ((BaseServerResponseException) e).getStatusCode();
+			return status >= 500 || status == 409 || status == 412;
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private IFhirSystemDao<Bundle, ?> systemDao() {
+		return (IFhirSystemDao<Bundle, ?>) daoRegistry.getSystemDao();
+	}
+
+	/**
+	 * Create the extracted resources and add the outcome to the Task in one
+	 * transaction, so the resources are never created without the
+	 * extraction-status output that keeps the Task from being extracted again.
+	 * The Task update is made against the version read (If-Match), so a
+	 * concurrent update of the Task is not overwritten: on a version conflict
+	 * nothing is written, and the Task is read again and the transaction retried.
+	 *
+	 * @return the ids of the created resources, none when the Task already has
+	 *         an extraction status
+	 */
+	private List<IIdType> commit(String taskId, String status, Bundle transaction) {
+		IFhirResourceDao<Task> dao = daoRegistry.getResourceDao(Task.class);
+		for (int attempt = 1; ; attempt++) {
+			Task task = dao.read(new IdType("Task", taskId), new SystemRequestDetails());
+			if (hasExtractionStatus(task)) {
+				logger.warning("QuestionnaireExtractionService::commit: Task/" + taskId
+						+ " already has an extraction status, " + status + " is not recorded");
+				return List.of();
+			}
+			task.addOutput().setValue(new CodeType(status)).getType().setText(EXTRACTION_STATUS);
+			// The transaction processing rewrites the resources, so every attempt gets its own copy
+			Bundle request = transaction.copy();
+			for (Bundle.BundleEntryComponent entry : request.getEntry()) {
+				// Resolved to the id of the created resource by the transaction
+				task.addOutput().setValue(new Reference(entry.getFullUrl())).getType().setText(EXTRACTED_RESOURCE);
+			}
+			request.addEntry()
+					.setResource(task)
+					.getRequest()
+					.setMethod(Bundle.HTTPVerb.PUT)
+					.setUrl("Task/" + taskId)
+					.setIfMatch("W/\"" + task.getIdElement().getVersionIdPart() + "\"");
+			try {
+				Bundle response = systemDao().transaction(new SystemRequestDetails(), request);
+				List<IIdType> created = new ArrayList<>();
+				// The last entry is the Task update
+				for (Bundle.BundleEntryComponent entry : response.getEntry().subList(0, response.getEntry().size() - 1)) {
+					created.add(new IdType(entry.getResponse().getLocation()).toUnqualifiedVersionless());
+				}
+				return created;
+			} catch (ResourceVersionConflictException e) {
+				if (attempt >= RECORD_STATUS_ATTEMPTS) {
+					logger.warning("QuestionnaireExtractionService::commit: Task/" + taskId + " kept changing");
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record a failed extraction on the Task, without extracted resources
+	 */
+	private void recordFailure(String taskId) {
+		try {
+			commit(taskId, "failed", new Bundle().setType(Bundle.BundleType.TRANSACTION));
+		} catch (Exception e) {
+			logger.severe("QuestionnaireExtractionService::recordFailure: failed to record failed on Task/" + taskId
+					+ ": " + e.getMessage());
+		}
+	}
+
+	private static void increment(Counter counter) {
+		if (counter != null) {
+			counter.increment();
+		}
+	}
+
+	private static class ExtractionRequest {
+		private final String taskId;
+		private final String questionnaireResponseRef;
+		private final String questionnaireUrl;
+		// Only touched by the worker running the request, retries are handed over through the executors
+		private int attempt;
+
+		ExtractionRequest(Task task) {
+			this.taskId = task.getIdElement().getIdPart();
+			this.questionnaireResponseRef = ((Reference) task.getOutputFirstRep().getValue()).getReference();
+			this.questionnaireUrl = ((CanonicalType) task.getInputFirstRep().getValue()).getValue();
+		}
+	}
+}
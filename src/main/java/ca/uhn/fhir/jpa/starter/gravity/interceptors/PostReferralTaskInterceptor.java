@@ -7,42 +7,139 @@ import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.ServerLogger;
 import ca.uhn.fhir.jpa.starter.authorization.AuthorizationController;
+import ca.uhn.fhir.jpa.starter.gravity.client.FhirClientRegistry;
+import ca.uhn.fhir.jpa.starter.gravity.client.OwnerEndpointResolver;
+import ca.uhn.fhir.jpa.starter.gravity.cluster.ShardLeaseManager;
 import ca.uhn.fhir.jpa.starter.gravity.models.ActiveTask;
+import ca.uhn.fhir.jpa.starter.gravity.models.OutboxEntry;
+import ca.uhn.fhir.jpa.starter.gravity.outbox.ReferralTaskDispatcher;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.api.server.ResponseDetails;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
-import org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+/**
+ * Sends referral Tasks created on this server to the owner Organization's
+ * server and keeps both copies in sync. Deliveries are queued in the
+ * TaskOutbox table and sent by a ReferralTaskDispatcher after the creating
+ * transaction commits, so Task creation never waits on the receiver. Receiver
+ * updates are pushed to /referral-notification by a rest-hook Subscription
+ * created on the receiver (see ReferralNotificationController); polling only
+ * reconciles tasks whose notifications were missed or whose receiver does not
+ * support Subscriptions. When replicas share the oauth database, each one only
+ * polls and delivers the tasks of the shards it leases (see ShardLeaseManager).
+ */
+@Component
 @Interceptor
 public class PostReferralTaskInterceptor {
 
+	public static final String NOTIFICATION_PATH = "/referral-notification";
+
 	@Autowired
 	AppProperties appProperties;
 
+	@Autowired
+	FhirClientRegistry clients;
+
+	@Autowired
+	OwnerEndpointResolver owners;
+
 	private static final Logger logger = ServerLogger.getLogger();
 
 	private final FhirContext ctx = FhirContext.forR4();
 
-	private static Map<String, String> activeTasksMap = Collections.synchronizedMap(new HashMap<String, String>());
+	private volatile Map<String, String> activeTasksMap = Collections.synchronizedMap(new HashMap<String, String>());
+
+	private volatile String thisServerBaseUrl = "";
 
-	private static String thisServerBaseUrl = "";
+	private static final String NOTIFICATION_PAYLOAD = "application/fhir+json";
+
+	private static final int POLLING_QUEUE_SIZE = 1000;
 
 	private static final String REFERRAL_TASK_PROFILE = "http://hl7.org/fhir/us/sdoh-clinicalcare/StructureDefinition/SDOHCC-TaskForReferralManagement";
 
+	private ShardLeaseManager leases;
+
+	private ReferralTaskDispatcher dispatcher;
+
+	private ExecutorService pollingPool;
+
+	// Serializes the push and poll updates of a single task, an entry lives as
+	// long as the task is tracked
+	private final Map<String, Object> taskLocks = new ConcurrentHashMap<>();
+
+	// When the next poll round also reconciles the tasks with a Subscription
+	private long nextReconciliation = 0;
+
+	@PostConstruct
+	protected void postConstruct() {
+		leases = new ShardLeaseManager(appProperties.getReferral().getCluster());
+		leases.start();
+		dispatcher = new ReferralTaskDispatcher(
+				appProperties.getReferral().getOutbox(), this::deliverTask, leases::ownsTask, leases.getNodeId());
+		dispatcher.start();
+
+		int poolSize = appProperties.getReferral().getPolling().getPool_size();
+		AtomicInteger threadCount = new AtomicInteger();
+		pollingPool = new ThreadPoolExecutor(
+				poolSize,
+				poolSize,
+				0L,
+				TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(POLLING_QUEUE_SIZE),
+				runnable -> {
+					Thread thread = new Thread(runnable, "referral-polling-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	@PreDestroy
+	protected void preDestroy() {
+		dispatcher.shutdown();
+		pollingPool.shutdownNow();
+		leases.shutdown();
+	}
+
 	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
 	public void handleTaskCreation(
 			IBaseResource theResource, RequestDetails theRequestDetails, ResponseDetails theResponseDetails) {
@@ -58,29 +155,37 @@ public class PostReferralTaskInterceptor {
 
 		if (ownerServerBaseUrl != null) {
 			updateTaskReferences(createdTask, thisServerBaseUrl);
-			String recipientTaskId = sendTaskToReceiver(createdTask, ownerServerBaseUrl);
-			ActiveTask activeTask = new ActiveTask(createdTask.getIdPart(), recipientTaskId);
+			ActiveTask activeTask = new ActiveTask(createdTask.getIdPart(), null);
 			AuthorizationController.getDB().write(activeTask);
+			enqueueDelivery(createdTask, ownerServerBaseUrl);
 			activeTasksMap = AuthorizationController.getDB().getActiveTasks();
-			if (recipientTaskId == null) {
-				logger.warning("Failed to send task " + activeTask.getTaskId() + " to recipient server:  "
-						+ ownerServerBaseUrl);
-			} else {
-				logger.info("Active TASKS: " + activeTasksMap.size() + ". Active sever task "
-						+ activeTask.getTaskId()
-						+ " is linked to recipient task " + activeTask.getExternalTaskId());
-			}
+			logger.info("Active TASKS: " + activeTasksMap.size() + ". Active sever task " + activeTask.getTaskId()
+					+ " queued for delivery to recipient server " + ownerServerBaseUrl);
 		} else {
 			logger.warning("Cannot send task to Owner: the owner's sever base URL is unknown ");
 		}
 	}
 
-	@Scheduled(fixedRate = 10000)
+	/**
+	 * Poll the receivers of the tasks this node owns. Tasks without a
+	 * Subscription are polled every round, tasks with one only every
+	 * reconciliation interval since their updates are pushed.
+	 */
+	@Scheduled(
+			fixedRateString = "${hapi.fhir.referral.polling.interval_ms:10000}",
+			initialDelayString = "${hapi.fhir.referral.polling.interval_ms:10000}")
 	public void pollTaskUpdates() {
 		if (thisServerBaseUrl.isEmpty()) thisServerBaseUrl = appProperties.getServer_address();
-		IGenericClient ehrClient = setupClient(thisServerBaseUrl);
-		try {
-			List<Task> activeTasks = fetchActiveTasksFromSelf(ehrClient);
+		long now = System.currentTimeMillis();
+		boolean reconcile = now >= nextReconciliation;
+		if (reconcile) nextReconciliation = now + appProperties.getReferral().getReconciliation_interval_ms();
+		long roundLength = reconcile
+				? appProperties.getReferral().getReconciliation_interval_ms()
+				: appProperties.getReferral().getPolling().getInterval_ms();
+		try (FhirClientRegistry.Lease ehr = clients.lease(thisServerBaseUrl)) {
+			IGenericClient ehrClient = ehr.getClient();
+			List<Task> activeTasks = fetchActiveTasksFromSelf(ehrClient, reconcile);
+			Map<String, List<Task>> tasksByReceiver = new HashMap<>();
 			for (Task task : activeTasks) {
 				String receiverUrl = getTaskOwnerServerBaseUrl(task);
 				if (task != null && task.getStatus() == Task.TaskStatus.REQUESTED) {
@@ -88,17 +193,15 @@ public class PostReferralTaskInterceptor {
 							&& !activeTasksMap.get(task.getIdPart()).equals("null")) {
 						updateTaskStatus(ehrClient, task, task, "received");
 					} else {
-						if (receiverUrl != null) {
+						// The task is committed, so an entry left pending by a node which stopped
+						// before marking it due can be delivered now
+						if (receiverUrl != null
+								&& AuthorizationController.getDB()
+												.markOutboxEntriesDue(task.getIdPart(), System.currentTimeMillis())
+										== 0
+								&& !AuthorizationController.getDB().hasOutboxEntry(task.getIdPart())) {
 							updateTaskReferences(task, thisServerBaseUrl);
-							String recipientTaskId = sendTaskToReceiver(task, receiverUrl);
-							if (recipientTaskId != null) {
-								ActiveTask activeTask = new ActiveTask(task.getIdPart(), recipientTaskId);
-								AuthorizationController.getDB().updateActiveTask(activeTask);
-								activeTasksMap = AuthorizationController.getDB().getActiveTasks();
-								logger.info("Active TASKS: " + activeTasksMap.size() + ". Active sever task "
-										+ task.getIdPart() + " is linked to recipient task "
-										+ activeTasksMap.get(task.getIdPart()));
-							}
+							enqueueDelivery(task, receiverUrl);
 						}
 					}
 
@@ -107,49 +210,15 @@ public class PostReferralTaskInterceptor {
 					if (receiverUrl != null) {
 						String updatedTaskId = activeTasksMap.get(task.getIdPart());
 						logger.info("THE UPDATED TASK ID IS " + updatedTaskId);
-						if (updatedTaskId.equals(null) || updatedTaskId.equals("null")) {
-							Boolean success = AuthorizationController.getDB().deleteActiveTask(task.getIdPart());
+						if (updatedTaskId == null || updatedTaskId.equals("null")) {
+							Boolean success = deleteActiveTask(task.getIdPart());
 							logger.info("SUCESSFULLY UNTRACKED TASK " + updatedTaskId + "?? " + success);
 							activeTasksMap = AuthorizationController.getDB().getActiveTasks();
 							continue;
 						}
-						Task updatedTask = fetchUpdatedTaskFromReceiverServer(receiverUrl, updatedTaskId);
-						String status = task.getStatus().toCode();
-						// Checking if the ehr user has cancelled the initiated task, if so, cancel the
-						// receiver task as well.
-						if (updatedTask != null && status.equals("cancelled")) {
-							IGenericClient receiverClient = setupClient(receiverUrl);
-							updateTaskStatus(receiverClient, task, updatedTask, "cancelled");
-							// Now checking if the receiver task status has changed. If so, update the
-							// initiated task on this server.
-						} else if (updatedTask != null
-								&& updatedTask.getStatus() != Task.TaskStatus.REQUESTED
-								&& !updatedTask.getStatus().equals(task.getStatus())) {
-							status = updatedTask.getStatus().toCode();
-							if (status.equals("completed")) {
-								String procedureRef = ((Reference)
-												updatedTask.getOutputFirstRep().getValue())
-										.getReference();
-								if (procedureRef != null) {
-									String procedureId = procedureRef.substring(procedureRef.indexOf("/"));
-									logger.info("Task is completed, retrieving the procedure " + procedureId
-											+ " from external server " + receiverUrl);
-									IGenericClient Client = setupClient(receiverUrl);
-									Procedure procedure = Client.read()
-											.resource(Procedure.class)
-											.withId(procedureId)
-											.execute();
-									logger.info("Procedure retrieved successfully, now saving...");
-									ehrClient.update().resource(procedure).execute();
-								}
-							}
-							updateTaskStatus(ehrClient, updatedTask, task, status);
-						}
-
-						if (status == "cancelled" || status == "rejected" || status == "completed") {
-							AuthorizationController.getDB().deleteActiveTask(task.getIdPart());
-							activeTasksMap = AuthorizationController.getDB().getActiveTasks();
-						}
+						tasksByReceiver
+								.computeIfAbsent(receiverUrl, key -> new ArrayList<>())
+								.add(task);
 					} else {
 						logger.warning("Cannot poll updates on task " + task.getIdPart()
 								+ ": The task owner base URL is unknown.");
@@ -157,6 +226,7 @@ public class PostReferralTaskInterceptor {
 					}
 				}
 			}
+			pollReceivers(tasksByReceiver, now + roundLength);
 		} catch (Exception e) {
 
 			logger.severe("Something wrong happened when polling task for update or updating the status on server: "
@@ -164,6 +234,411 @@ public class PostReferralTaskInterceptor {
 		}
 	}
 
+	/**
+	 * Poll every receiver concurrently on the polling pool. A poll round is
+	 * bounded by its interval, receivers still running then are
+	 * cancelled and picked up again by the next round. When the pool queue is
+	 * full the remaining receivers are skipped until the next round, rather
+	 * than run on the scheduler thread.
+	 *
+	 * @param tasksByReceiver - the tasks to reconcile, grouped by receiver base URL
+	 * @param deadline        - end of the round in epoch milliseconds
+	 */
+	private void pollReceivers(Map<String, List<Task>> tasksByReceiver, long deadline)
+			throws InterruptedException {
+		if (tasksByReceiver.isEmpty()) return;
+
+		Map<String, ActiveTask> trackedTasks = new HashMap<>();
+		for (ActiveTask activeTask : AuthorizationController.getDB().readActiveTasks()) {
+			trackedTasks.put(activeTask.getTaskId(), activeTask);
+		}
+
+		Map<String, Future<?>> results = new LinkedHashMap<>();
+		for (String receiverUrl : tasksByReceiver.keySet()) {
+			try {
+				results.put(
+						receiverUrl,
+						pollingPool.submit(() -> {
+							// Leased by the poll itself, it may outlive the round when cancelled
+							try (FhirClientRegistry.Lease ehr = clients.lease(thisServerBaseUrl);
+									FhirClientRegistry.Lease receiver = clients.lease(receiverUrl)) {
+								pollReceiver(
+										ehr.getClient(),
+										receiver.getClient(),
+										receiverUrl,
+										tasksByReceiver.get(receiverUrl),
+										trackedTasks);
+							}
+						}));
+			} catch (RejectedExecutionException e) {
+				logger.warning("Polling pool is full, skipping " + (tasksByReceiver.size() - results.size())
+						+ " receivers until the next round");
+				break;
+			}
+		}
+		for (Map.Entry<String, Future<?>> result : results.entrySet()) {
+			try {
+				result.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				result.getValue().cancel(true);
+				logger.warning("Polling receiver " + result.getKey() + " did not finish within the round");
+			} catch (ExecutionException e) {
+				logger.severe("Failed to poll receiver " + result.getKey() + ": " + e.getCause().getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Fetch the receiver copies of the tasks and reconcile the ones which changed.
+	 * Tasks with a known receiver version are searched incrementally with
+	 * Task?_id=a,b,c&_lastUpdated=gt..., so unchanged copies are not downloaded.
+	 * Tasks without a known version, and tasks cancelled here (the cancellation
+	 * is sent to the receiver copy), are always fetched. The receiver is skipped
+	 * for this round when the searches exceed receiver_timeout_ms.
+	 */
+	private void pollReceiver(
+			IGenericClient ehrClient,
+			IGenericClient receiverClient,
+			String receiverUrl,
+			List<Task> tasks,
+			Map<String, ActiveTask> trackedTasks) {
+		long deadline = System.currentTimeMillis()
+				+ appProperties.getReferral().getPolling().getReceiver_timeout_ms();
+		int batchSize = appProperties.getReferral().getPolling().getBatch_size();
+
+		List<String> fullIds = new ArrayList<>();
+		List<ActiveTask> incremental = new ArrayList<>();
+		for (Task task : tasks) {
+			ActiveTask activeTask = trackedTasks.get(task.getIdPart());
+			if (activeTask == null || activeTask.getExternalTaskId() == null) continue;
+			if (activeTask.getExternalLastUpdated() == null || task.getStatus() == Task.TaskStatus.CANCELLED) {
+				fullIds.add(activeTask.getExternalTaskId());
+			} else {
+				incremental.add(activeTask);
+			}
+		}
+		// Sorting by last update keeps the _lastUpdated lower bound of each batch
+		// close to the versions already seen
+		incremental.sort(Comparator.comparing(activeTask -> toDate(activeTask.getExternalLastUpdated())));
+
+		Map<String, Task> receiverTasks = new HashMap<>();
+		try {
+			for (Task receiverTask : searchTasksById(receiverClient, fullIds, null, deadline)) {
+				receiverTasks.put(receiverTask.getIdPart(), receiverTask);
+			}
+			for (int i = 0; i < incremental.size(); i += batchSize) {
+				List<ActiveTask> batch = incremental.subList(i, Math.min(incremental.size(), i + batchSize));
+				List<String> ids = batch.stream().map(ActiveTask::getExternalTaskId).collect(Collectors.toList());
+				String lastUpdatedAfter = batch.get(0).getExternalLastUpdated();
+				for (Task receiverTask : searchTasksById(receiverClient, ids, lastUpdatedAfter, deadline)) {
+					receiverTasks.put(receiverTask.getIdPart(), receiverTask);
+				}
+			}
+		} catch (TimeoutException e) {
+			logger.warning("Polling receiver " + receiverUrl + " timed out: " + e.getMessage());
+			return;
+		}
+
+		for (Task task : tasks) {
+			ActiveTask activeTask = trackedTasks.get(task.getIdPart());
+			if (activeTask == null || activeTask.getExternalTaskId() == null) continue;
+			String externalTaskId = activeTask.getExternalTaskId();
+			Task updatedTask = receiverTasks.get(externalTaskId);
+			if (updatedTask == null && !fullIds.contains(externalTaskId)) {
+				// Not modified since the last synchronized version
+				continue;
+			}
+			if (updatedTask == null) {
+				logger.warning("Receiver task " + externalTaskId + " of task " + task.getIdPart()
+						+ " was not found on " + receiverUrl);
+			} else if (task.getStatus() != Task.TaskStatus.CANCELLED
+					&& updatedTask.getMeta().getVersionId() != null
+					&& updatedTask.getMeta().getVersionId().equals(activeTask.getExternalVersionId())) {
+				continue;
+			}
+			try {
+				if (synchronizeTask(ehrClient, task, receiverUrl, updatedTask)) {
+					recordReceiverVersion(task.getIdPart(), updatedTask);
+				}
+			} catch (Exception e) {
+				logger.severe("Failed to reconcile task " + task.getIdPart() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Search tasks by ID in batches of batch_size IDs per Task?_id=a,b,c request
+	 *
+	 * @param client           - client for the server to search
+	 * @param ids              - the task IDs
+	 * @param lastUpdatedAfter - only return tasks updated after this instant, or
+	 *                         null for all of them
+	 * @param deadline         - epoch millis after which no further batch is
+	 *                         requested
+	 * @return the tasks found
+	 * @throws TimeoutException if the deadline passed before all batches were
+	 *                          searched
+	 */
+	private List<Task> searchTasksById(
+			IGenericClient client, List<String> ids, String lastUpdatedAfter, long deadline)
+			throws TimeoutException {
+		int batchSize = appProperties.getReferral().getPolling().getBatch_size();
+		List<Task> tasks = new ArrayList<>();
+		for (int i = 0; i < ids.size(); i += batchSize) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new TimeoutException("searched " + i + " of " + ids.size() + " tasks");
+			}
+			List<String> batch = ids.subList(i, Math.min(ids.size(), i + batchSize));
+			IQuery<Bundle> query = client.search()
+					.forResource(Task.class)
+					.where(new TokenClientParam("_id").exactly().code(String.join(",", batch)))
+					.count(batch.size())
+					.returnBundle(Bundle.class);
+			if (lastUpdatedAfter != null) {
+				DateParam lowerBound = new DateParam(ParamPrefixEnum.GREATERTHAN, lastUpdatedAfter);
+				query = query.lastUpdated(new DateRangeParam().setLowerBound(lowerBound));
+			}
+			query.execute().getEntry().stream()
+					.map(Bundle.BundleEntryComponent::getResource)
+					.filter(Task.class::isInstance)
+					.forEach(resource -> tasks.add((Task) resource));
+		}
+		return tasks;
+	}
+
+	private void recordReceiverVersion(String taskId, Task receiverTask) {
+		if (receiverTask == null || !receiverTask.hasMeta()) return;
+		AuthorizationController.getDB()
+				.updateActiveTaskVersion(
+						taskId,
+						receiverTask.getMeta().getVersionId(),
+						receiverTask.getMeta().getLastUpdatedElement().getValueAsString());
+	}
+
+	private static Date toDate(String instant) {
+		return new InstantType(instant).getValue();
+	}
+
+	/**
+	 * Apply a receiver task pushed by its rest-hook Subscription to the linked
+	 * task on this server.
+	 *
+	 * @param activeTask   - the tracked task the notification was sent for
+	 * @param receiverTask - the receiver task from the notification payload
+	 * @return false if the task on this server could not be updated, the
+	 *         receiver should then deliver the notification again
+	 */
+	public boolean handleReceiverNotification(ActiveTask activeTask, Task receiverTask) {
+		if (thisServerBaseUrl.isEmpty()) thisServerBaseUrl = appProperties.getServer_address();
+		try (FhirClientRegistry.Lease ehr = clients.lease(thisServerBaseUrl)) {
+			IGenericClient ehrClient = ehr.getClient();
+			Task task = ehrClient.read().resource(Task.class).withId(activeTask.getTaskId()).execute();
+			String receiverUrl = getTaskOwnerServerBaseUrl(task);
+			if (receiverUrl == null) {
+				logger.warning("Cannot apply notification for task " + task.getIdPart()
+						+ ": The task owner base URL is unknown.");
+				return true;
+			}
+			if (!synchronizeTask(ehrClient, task, receiverUrl, receiverTask)) return false;
+			recordReceiverVersion(task.getIdPart(), receiverTask);
+			return true;
+		}
+	}
+
+	/**
+	 * Reconcile a task on this server with its copy on the receiver server. A
+	 * cancellation on this server is sent to the receiver, otherwise status
+	 * changes on the receiver are copied here. Finished tasks are untracked.
+	 * The receiver version is only recorded by the callers when this succeeds,
+	 * so a failed update is retried by the next notification or poll round.
+	 *
+	 * @param ehrClient   - client for this server
+	 * @param task        - the task on this server
+	 * @param receiverUrl - base URL of the receiver server
+	 * @param updatedTask - the current task on the receiver server
+	 * @return false if the status update failed, the task is then still tracked
+	 */
+	private boolean synchronizeTask(IGenericClient ehrClient, Task task, String receiverUrl, Task updatedTask) {
+		String taskId = task.getIdPart();
+		Object lock = taskLocks.computeIfAbsent(taskId, id -> new Object());
+		boolean synchronizedTask;
+		synchronized (lock) {
+			synchronizedTask = synchronizeTaskLocked(ehrClient, task, receiverUrl, updatedTask);
+		}
+		// The lock of an untracked task is dropped only after it is released
+		if (!activeTasksMap.containsKey(taskId)) taskLocks.remove(taskId, lock);
+		return synchronizedTask;
+	}
+
+	private boolean synchronizeTaskLocked(IGenericClient ehrClient, Task task, String receiverUrl, Task updatedTask) {
+		String status = task.getStatus().toCode();
+		boolean updated = true;
+		// Checking if the ehr user has cancelled the initiated task, if so, cancel the
+		// receiver task as well.
+		if (updatedTask != null && status.equals("cancelled")) {
+			try (FhirClientRegistry.Lease receiver = clients.lease(receiverUrl)) {
+				updated = updateTaskStatus(receiver.getClient(), task, updatedTask, "cancelled");
+			}
+			// Now checking if the receiver task status has changed. If so, update the
+			// initiated task on this server.
+		} else if (updatedTask != null
+				&& updatedTask.getStatus() != Task.TaskStatus.REQUESTED
+				&& !updatedTask.getStatus().equals(task.getStatus())) {
+			status = updatedTask.getStatus().toCode();
+			if (status.equals("completed")) {
+				String procedureRef =
+						((Reference) updatedTask.getOutputFirstRep().getValue()).getReference();
+				if (procedureRef != null) {
+					String procedureId = procedureRef.substring(procedureRef.indexOf("/"));
+					logger.info("Task is completed, retrieving the procedure " + procedureId
+							+ " from external server " + receiverUrl);
+					Procedure procedure;
+					try (FhirClientRegistry.Lease receiver = clients.lease(receiverUrl)) {
+						procedure = receiver.getClient()
+								.read()
+								.resource(Procedure.class)
+								.withId(procedureId)
+								.execute();
+					}
+					logger.info("Procedure retrieved successfully, now saving...");
+					ehrClient.update().resource(procedure).execute();
+				}
+			}
+			updated = updateTaskStatus(ehrClient, updatedTask, task, status);
+		}
+
+		if (updated && (status.equals("cancelled") || status.equals("rejected") || status.equals("completed"))) {
+			untrackTask(task.getIdPart(), receiverUrl);
+		}
+		return updated;
+	}
+
+	/**
+	 * Queue the task for delivery to the receiver. Inside a transaction (Task
+	 * creation) the entry is written as pending, since the outbox lives in the
+	 * oauth database and is not part of the transaction. It is made due once the
+	 * transaction commits and dropped if it rolls back. Outside a transaction the
+	 * entry is due right away.
+	 */
+	private void enqueueDelivery(Task task, String receiverUrl) {
+		boolean transactional = TransactionSynchronizationManager.isSynchronizationActive();
+		OutboxEntry entry = new OutboxEntry(
+				task.getIdPart(),
+				leases.shardOf(task.getIdPart()),
+				receiverUrl,
+				ctx.newJsonParser().encodeResourceToString(task),
+				transactional ? OutboxEntry.PENDING_COMMIT : System.currentTimeMillis());
+		AuthorizationController.getDB().write(entry);
+		if (!transactional) {
+			dispatcher.wakeUp();
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+			@Override
+			public void afterCompletion(int status) {
+				if (status == STATUS_COMMITTED) {
+					AuthorizationController.getDB()
+							.markOutboxEntriesDue(entry.getTaskId(), System.currentTimeMillis());
+					dispatcher.wakeUp();
+				} else {
+					AuthorizationController.getDB().deleteOutboxEntry(entry.getId());
+					deleteActiveTask(entry.getTaskId());
+					activeTasksMap = AuthorizationController.getDB().getActiveTasks();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Send a queued task to its receiver and link the receiver copy to the task
+	 * on this server. Called from the dispatcher pool.
+	 *
+	 * @param entry - the outbox entry to deliver
+	 * @return true if the receiver created the task
+	 */
+	private boolean deliverTask(OutboxEntry entry) {
+		Task task = ctx.newJsonParser().parseResource(Task.class, entry.getPayload());
+		String recipientTaskId = sendTaskToReceiver(task, entry.getReceiverUrl());
+		if (recipientTaskId == null) return false;
+
+		ActiveTask activeTask = linkReceiverTask(entry.getTaskId(), recipientTaskId, entry.getReceiverUrl());
+		AuthorizationController.getDB().updateActiveTask(activeTask);
+		activeTasksMap = AuthorizationController.getDB().getActiveTasks();
+		logger.info("Active TASKS: " + activeTasksMap.size() + ". Active sever task " + activeTask.getTaskId()
+				+ " is linked to recipient task " + activeTask.getExternalTaskId());
+		return true;
+	}
+
+	/**
+	 * Build the ActiveTask linking a task on this server to its copy on the
+	 * receiver. When push is enabled a rest-hook Subscription is created on the
+	 * receiver for the copy; if that fails the task is still tracked and polled.
+	 */
+	private ActiveTask linkReceiverTask(String taskId, String receiverTaskId, String receiverBaseUrl) {
+		if (receiverTaskId == null || !isPushEnabled()) {
+			return new ActiveTask(taskId, receiverTaskId);
+		}
+		String notificationToken = UUID.randomUUID().toString();
+		String subscriptionId = subscribeToReceiverTask(receiverBaseUrl, taskId, receiverTaskId, notificationToken);
+		if (subscriptionId == null) {
+			return new ActiveTask(taskId, receiverTaskId);
+		}
+		return new ActiveTask(taskId, receiverTaskId, subscriptionId, notificationToken);
+	}
+
+	private String subscribeToReceiverTask(
+			String receiverBaseUrl, String taskId, String receiverTaskId, String notificationToken) {
+		Subscription subscription = new Subscription();
+		subscription.setStatus(Subscription.SubscriptionStatus.REQUESTED);
+		subscription.setReason("Status updates for referral task " + thisServerBaseUrl + "/Task/" + taskId);
+		subscription.setCriteria("Task?_id=" + receiverTaskId);
+		subscription
+				.getChannel()
+				.setType(Subscription.SubscriptionChannelType.RESTHOOK)
+				.setEndpoint(getNotificationEndpoint())
+				.setPayload(NOTIFICATION_PAYLOAD)
+				.addHeader("Authorization: Bearer " + notificationToken);
+		try (FhirClientRegistry.Lease receiver = clients.lease(receiverBaseUrl)) {
+			MethodOutcome outcome =
+					receiver.getClient().create().resource(subscription).execute();
+			String subscriptionId = outcome.getId().getIdPart();
+			logger.info("Subscribed to receiver task " + receiverTaskId + " on " + receiverBaseUrl
+					+ " with Subscription " + subscriptionId);
+			return subscriptionId;
+		} catch (Exception e) {
+			logger.warning("Failed to subscribe to receiver task " + receiverTaskId + " on " + receiverBaseUrl
+					+ ", falling back to polling: " + e.getMessage());
+		}
+		return null;
+	}
+
+	private void untrackTask(String taskId, String receiverUrl) {
+		ActiveTask activeTask = AuthorizationController.getDB().readActiveTask(taskId);
+		deleteActiveTask(taskId);
+		activeTasksMap = AuthorizationController.getDB().getActiveTasks();
+		if (activeTask != null && activeTask.getSubscriptionId() != null) {
+			try (FhirClientRegistry.Lease receiver = clients.lease(receiverUrl)) {
+				receiver.getClient()
+						.delete()
+						.resourceById("Subscription", activeTask.getSubscriptionId())
+						.execute();
+			} catch (Exception e) {
+				logger.warning("Failed to delete Subscription " + activeTask.getSubscriptionId() + " on "
+						+ receiverUrl + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private String getNotificationEndpoint() {
+		String endpoint = appProperties.getReferral().getNotification_endpoint();
+		if (endpoint != null && !endpoint.isEmpty()) return endpoint;
+		return thisServerBaseUrl.replaceFirst("/fhir/?$", "") + NOTIFICATION_PATH;
+	}
+
+	private boolean isPushEnabled() {
+		return appProperties != null && Boolean.TRUE.equals(appProperties.getReferral().getPush_enabled());
+	}
+
 	private void updateTaskReferences(Task task, String baseUrl) {
 		task.getPartOf().forEach(reference -> {
 			updateReference(reference, baseUrl);
@@ -206,9 +681,8 @@ public class PostReferralTaskInterceptor {
 	private String sendTaskToReceiver(Task task, String receiverBaseUrl) {
 		// Implement your POST request logic to send the Task to the receiver server
 		// Return taskId if successful, null otherwise
-		IGenericClient client = setupClient(receiverBaseUrl);
-		try {
-			MethodOutcome outcome = client.create().resource(task).execute();
+		try (FhirClientRegistry.Lease receiver = clients.lease(receiverBaseUrl)) {
+			MethodOutcome outcome = receiver.getClient().create().resource(task).execute();
 			Task t = (Task) outcome.getResource();
 			return t.getIdElement().getIdPart();
 		} catch (Exception e) {
@@ -217,23 +691,6 @@ public class PostReferralTaskInterceptor {
 		return null;
 	}
 
-	private Task fetchUpdatedTaskFromReceiverServer(String receiverUrl, String taskId) {
-		IGenericClient client = setupClient(receiverUrl);
-
-		Task task = client.read().resource(Task.class).withId(taskId).execute();
-		return task;
-	}
-
-	private Organization fetchOrganization(String serverUrl, String organizationId) {
-		IGenericClient client = setupClient(serverUrl);
-
-		Organization org = client.read()
-				.resource(Organization.class)
-				.withId(organizationId)
-				.execute();
-		return org;
-	}
-
 	private String getTaskOwnerServerBaseUrl(Task task) {
 		if (task.getOwner() == null || task.getOwner().getReference() == null) {
 			return null;
@@ -242,62 +699,63 @@ public class PostReferralTaskInterceptor {
 		String[] ownerReferenceParts = task.getOwner().getReference().split("/");
 		String ownerType = ownerReferenceParts[0];
 		String ownerId = ownerReferenceParts[1];
-		String ownerServerBaseUrl = null;
 
 		if (ownerType.equals("Organization")) {
-			Organization owner = fetchOrganization(thisServerBaseUrl, ownerId);
-			List<ContactPoint> telecoms = owner.getContactFirstRep().getTelecom();
-			for (ContactPoint telecom : telecoms) {
-				if (telecom.hasSystem() && telecom.getSystem().equals(ContactPointSystem.URL)) {
-					ownerServerBaseUrl = telecom.getValue();
-					break;
-				}
-			}
+			return owners.getServerBaseUrl(ownerId);
 		}
-
-		return ownerServerBaseUrl;
+		return null;
 	}
 
-	private List<Task> fetchActiveTasksFromSelf(IGenericClient client) {
-		Integer size = activeTasksMap.size();
-		logger.info("PostReferralTaskInterceptor::fetchActiveTasksFromSelf: CHECKING ACTIVE TASKS: " + size);
-		if (size == 0) {
-			try {
-				activeTasksMap = AuthorizationController.getDB().getActiveTasks();
-				size = activeTasksMap.size();
-			} catch (Exception e) {
-				logger.severe(e.getMessage());
+	/**
+	 * @param includeSubscribed - also return the tasks updated by a receiver
+	 *                          Subscription, otherwise only the polled ones
+	 */
+	private List<Task> fetchActiveTasksFromSelf(IGenericClient client, boolean includeSubscribed) {
+		Set<String> subscribed = new HashSet<>();
+		// Reload every round, other nodes sharing the database track tasks too
+		try {
+			activeTasksMap = AuthorizationController.getDB().getActiveTasks();
+			// Drop the locks of tasks untracked by other nodes
+			taskLocks.keySet().retainAll(activeTasksMap.keySet());
+			if (!includeSubscribed) {
+				for (ActiveTask activeTask : AuthorizationController.getDB().readActiveTasks()) {
+					if (activeTask.getSubscriptionId() != null) subscribed.add(activeTask.getTaskId());
+				}
 			}
-			if (size == 0) return new ArrayList<Task>();
+		} catch (Exception e) {
+			logger.severe(e.getMessage());
 		}
-		List<String> taskIdsToUpdate = new ArrayList<>(activeTasksMap.keySet());
-		// Build a comma-separated string of IDs
-		String idList = String.join(",", taskIdsToUpdate);
+		List<String> taskIdsToUpdate = activeTasksMap.keySet().stream()
+				.filter(leases::ownsTask)
+				.filter(taskId -> !subscribed.contains(taskId))
+				.collect(Collectors.toList());
+		logger.info("PostReferralTaskInterceptor::fetchActiveTasksFromSelf: CHECKING ACTIVE TASKS: "
+				+ taskIdsToUpdate.size() + " of " + activeTasksMap.size() + " owned by node " + leases.getNodeId());
+		if (taskIdsToUpdate.isEmpty()) return new ArrayList<Task>();
 
 		// Search for tasks with the specified IDs
-		Bundle response = client.search()
-				.forResource(Task.class)
-				.where(new TokenClientParam("_id").exactly().code(idList))
-				.returnBundle(Bundle.class)
-				.execute();
-
-		List<Task> tasks = response.getEntry().stream()
-				.map(bundleEntryComponent -> (Task) bundleEntryComponent.getResource())
-				.collect(Collectors.toList());
+		List<Task> tasks;
+		try {
+			tasks = searchTasksById(client, taskIdsToUpdate, null, Long.MAX_VALUE);
+		} catch (TimeoutException e) {
+			return new ArrayList<Task>();
+		}
 
 		if (tasks.isEmpty()) {
 			taskIdsToUpdate.forEach(id -> {
-				AuthorizationController.getDB().deleteActiveTask(id);
+				deleteActiveTask(id);
 				activeTasksMap = AuthorizationController.getDB().getActiveTasks();
 			});
 		}
 		return tasks;
 	}
 
-	private IGenericClient setupClient(String serverBaseUrl) {
-		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
-		ctx.getRestfulClientFactory().setConnectTimeout(20 * 1000);
-		return ctx.newRestfulGenericClient(serverBaseUrl);
+	/**
+	 * Stop tracking a task, whatever the reason. Its lock may still be held and
+	 * is dropped by synchronizeTask, or by the next round for untracked tasks.
+	 */
+	private Boolean deleteActiveTask(String taskId) {
+		return AuthorizationController.getDB().deleteActiveTask(taskId);
 	}
 
 	public boolean isReferralTask(Task createdTask){
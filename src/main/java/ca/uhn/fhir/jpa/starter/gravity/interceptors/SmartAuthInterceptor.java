@@ -3,21 +3,27 @@ package ca.uhn.fhir.jpa.starter.gravity.interceptors;
 import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.ServerLogger;
 import ca.uhn.fhir.jpa.starter.authorization.AuthorizationController;
+import ca.uhn.fhir.jpa.starter.authorization.JwtKeyMaterial;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
 import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
-import com.auth0.jwt.JWT;
 import com.auth0.jwt.JWTVerifier;
-import com.auth0.jwt.algorithms.Algorithm;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.exceptions.SignatureVerificationException;
 import com.auth0.jwt.exceptions.TokenExpiredException;
 import com.auth0.jwt.interfaces.DecodedJWT;
-import org.hl7.fhir.instance.model.api.IIdType;
-import org.hl7.fhir.r4.model.IdType;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -26,36 +32,90 @@ import java.util.regex.Pattern;
 @SuppressWarnings("ConstantConditions")
 public class SmartAuthInterceptor extends AuthorizationInterceptor {
 	private static final Logger logger = ServerLogger.getLogger();
+	private static final Pattern BEARER_PATTERN = Pattern.compile("Bearer (.+)");
+	private static final List<IAuthRule> UNAUTHORIZED_RULES = unauthorizedRule();
+	private static final List<IAuthRule> ADMIN_RULES = adminRule();
+	private static final List<IAuthRule> CLIENT_AUTH_RULES = clientAuthRule();
+
+	/**
+	 * Upper bound on how long a verified token is trusted without checking the
+	 * signature again, regardless of its exp claim
+	 */
+	private static final Duration MAX_VERIFIED_TOKEN_TTL = Duration.ofMinutes(5);
+
+	private static final long MAX_VERIFIED_TOKENS = 10_000;
+
 	AppProperties appProperties;
 
+	/**
+	 * Tokens which already passed verification, keyed by a SHA-256 digest of the
+	 * server base and token so raw bearer tokens are not retained. Each entry
+	 * expires with the token's exp claim.
+	 */
+	private final Cache<String, VerifiedToken> verifiedTokens = Caffeine.newBuilder()
+			.maximumSize(MAX_VERIFIED_TOKENS)
+			.expireAfter(new VerifiedTokenExpiry())
+			.build();
+
+	public SmartAuthInterceptor() {}
+
+	public SmartAuthInterceptor(AppProperties appProperties) {
+		this.appProperties = appProperties;
+	}
+
 	@Override
 	public List<IAuthRule> buildRuleList(RequestDetails theRequestDetails) {
 		String authHeader = theRequestDetails.getHeader("Authorization");
 		// Check if authorization header is present, return unauthorized rule if not
 		if (authHeader == null) {
 			logger.info("No Authorization header found");
-			return unauthorizedRule();
+			return UNAUTHORIZED_RULES;
 		}
 
 		// Check authorization header pattern Bearer <token> and extract token. Throw
 		// exception if pattern does not match
-		Pattern pattern = Pattern.compile("Bearer (.+)");
-		Matcher matcher = pattern.matcher(authHeader);
+		Matcher matcher = BEARER_PATTERN.matcher(authHeader);
 		if (!matcher.matches() || matcher.groupCount() != 1) {
 			throw new AuthenticationException("Authorization header does not match pattern Bearer <token>");
 		}
 
-		String token = matcher.group(1);
+		return authorizeToken(matcher.group(1), theRequestDetails.getFhirServerBase());
+	}
+
+	/**
+	 * Verify an access token and get the rules granted to it, as for a request
+	 * bearing it. Also used for the CDS Hooks fhirAuthorization token before
+	 * prefetch queries read this server through the DAOs.
+	 *
+	 * @param token          - the bearer token
+	 * @param fhirServerBase - the base url of this FHIR server, the expected
+	 *                       issuer and audience
+	 * @return the rules granted to the token
+	 * @throws AuthenticationException when the token is not valid
+	 */
+	public List<IAuthRule> authorizeToken(String token, String fhirServerBase) {
 		logger.fine("SmartAuthInterceptor::Token token retrieved is " + token);
 		String adminToken = appProperties.getAdmin_token();
 		// Check if token is admin token and return admin rule if true
 		if (adminToken != null && token.equals(adminToken)) {
 			logger.fine("SmartAuthInterceptor::Token token is admin token");
-			return adminRule();
+			return ADMIN_RULES;
+		}
+
+		JwtKeyMaterial keyMaterial = AuthorizationController.getKeyMaterial();
+		if (keyMaterial == null) {
+			throw new AuthenticationException("Token verification failed: no signing keys are loaded");
 		}
+		String digest = digest(fhirServerBase, token);
+		VerifiedToken verifiedToken = verifiedTokens.getIfPresent(digest);
+		if (verifiedToken != null && verifiedToken.isSignedWith(keyMaterial)) {
+			logger.fine("SmartAuthInterceptor::Token token already verified");
+			return verifiedToken.getRules();
+		}
+
 		try {
-			IIdType providerId = verify(token, theRequestDetails.getFhirServerBase());
-			if (providerId != null) return clientAuthRule();
+			DecodedJWT jwt = verify(keyMaterial, token, fhirServerBase);
+			verifiedTokens.put(digest, new VerifiedToken(jwt, keyMaterial, CLIENT_AUTH_RULES));
 		} catch (SignatureVerificationException e) {
 			throw new AuthenticationException("Token signature verification failed", e.getCause());
 		} catch (TokenExpiredException e) {
@@ -65,24 +125,24 @@ public class SmartAuthInterceptor extends AuthorizationInterceptor {
 		} catch (Exception e) {
 			throw new AuthenticationException(e.getMessage(), e.getCause());
 		}
-		return clientAuthRule();
+		return CLIENT_AUTH_RULES;
 	}
 
-	private List<IAuthRule> unauthorizedRule() {
-		return new RuleBuilder()
+	private static List<IAuthRule> unauthorizedRule() {
+		return List.copyOf(new RuleBuilder()
 				.allow()
 				.metadata()
 				.andThen()
 				.denyAll("unauthenticated client")
-				.build();
+				.build());
 	}
 
-	private List<IAuthRule> adminRule() {
-		return new RuleBuilder().allowAll().build();
+	private static List<IAuthRule> adminRule() {
+		return List.copyOf(new RuleBuilder().allowAll().build());
 	}
 
-	private List<IAuthRule> clientAuthRule() {
-		return new RuleBuilder()
+	private static List<IAuthRule> clientAuthRule() {
+		return List.copyOf(new RuleBuilder()
 				.deny("unauthorize write CareTeam")
 				.write()
 				.resourcesOfType("CareTeam")
@@ -194,32 +254,91 @@ public class SmartAuthInterceptor extends AuthorizationInterceptor {
 				.withAnyId()
 				.andThen()
 				.allowAll()
-				.build();
+				.build());
 	}
 
 	/**
 	 * Helper method to verify and decode the access token
 	 *
+	 * @param keyMaterial - the current signing keys
 	 * @param token       - the access token
 	 * @param fhirBaseUrl - the base url of this FHIR server
-	 * @return the base interface Patient ID datatype if the jwt token is verified
-	 *         and contains a patient ID in it claim, otherwise null.
+	 * @return the decoded token if the signature, expiration, issuer and audience
+	 *         are valid
 	 * @throws SignatureVerificationException
 	 * @throws TokenExpiredException
 	 * @throws JWTVerificationException
 	 */
-	private IIdType verify(String token, String fhirBaseUrl)
+	private DecodedJWT verify(JwtKeyMaterial keyMaterial, String token, String fhirBaseUrl)
 			throws SignatureVerificationException, TokenExpiredException, JWTVerificationException {
-		Algorithm algorithm = Algorithm.RSA256(AuthorizationController.getPublicKey(), null);
 		logger.fine("Verifying JWT token iss and aud is " + fhirBaseUrl);
-		JWTVerifier verifier = JWT.require(algorithm)
-				.withIssuer(fhirBaseUrl)
-				.withAudience(fhirBaseUrl)
-				.build();
-		DecodedJWT jwt = verifier.verify(token);
-		String providerId = jwt.getClaim("provider_id").asString();
-		if (providerId != null) return new IdType("Practitioner", providerId);
-
-		return null;
+		JWTVerifier verifier = keyMaterial.getVerifier(fhirBaseUrl, fhirBaseUrl);
+		return verifier.verify(token);
+	}
+
+	private static String digest(String fhirBaseUrl, String token) {
+		try {
+			MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+			messageDigest.update(String.valueOf(fhirBaseUrl).getBytes(StandardCharsets.UTF_8));
+			messageDigest.update((byte) ' ');
+			messageDigest.update(token.getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(messageDigest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * The outcome of verifying a token: its claims and the rules granted to it.
+	 * Only valid while the keys which verified it are still current.
+	 */
+	private static class VerifiedToken {
+		private final DecodedJWT jwt;
+		private final JwtKeyMaterial keyMaterial;
+		private final List<IAuthRule> rules;
+
+		VerifiedToken(DecodedJWT jwt, JwtKeyMaterial keyMaterial, List<IAuthRule> rules) {
+			this.jwt = jwt;
+			this.keyMaterial = keyMaterial;
+			this.rules = rules;
+		}
+
+		List<IAuthRule> getRules() {
+			return this.rules;
+		}
+
+		boolean isSignedWith(JwtKeyMaterial currentKeyMaterial) {
+			return this.keyMaterial == currentKeyMaterial;
+		}
+
+		Duration timeToLive(Instant now) {
+			Instant expiresAt = jwt.getExpiresAtAsInstant();
+			if (expiresAt == null) return MAX_VERIFIED_TOKEN_TTL;
+			Duration untilExpiry = Duration.between(now, expiresAt);
+			if (untilExpiry.isNegative()) return Duration.ZERO;
+			return untilExpiry.compareTo(MAX_VERIFIED_TOKEN_TTL) < 0 ? untilExpiry : MAX_VERIFIED_TOKEN_TTL;
+		}
+	}
+
+	/**
+	 * Expire a verified token at its exp claim, capped at MAX_VERIFIED_TOKEN_TTL
+	 */
+	private static class VerifiedTokenExpiry implements Expiry<String, VerifiedToken> {
+		@Override
+		public long expireAfterCreate(String digest, VerifiedToken verifiedToken, long currentTime) {
+			return verifiedToken.timeToLive(Instant.now()).toNanos();
+		}
+
+		@Override
+		public long expireAfterUpdate(
+				String digest, VerifiedToken verifiedToken, long currentTime, long currentDuration) {
+			return verifiedToken.timeToLive(Instant.now()).toNanos();
+		}
+
+		@Override
+		public long expireAfterRead(
+				String digest, VerifiedToken verifiedToken, long currentTime, long currentDuration) {
+			return currentDuration;
+		}
 	}
 }
@@ -6,10 +6,46 @@ import java.util.Map;
 public class ActiveTask {
 	private String taskId;
 	private String externalTaskId;
+	private String subscriptionId;
+	private String notificationToken;
+	private String externalVersionId;
+	private String externalLastUpdated;
 
 	public ActiveTask(String taskId, String externalTaskId) {
+		this(taskId, externalTaskId, null, null);
+	}
+
+	/**
+	 * @param taskId            - the referral Task on this server
+	 * @param externalTaskId    - the copy of the Task on the receiver server
+	 * @param subscriptionId    - the receiver Subscription pushing updates of the
+	 *                          external task, null when polled only
+	 * @param notificationToken - the bearer token the receiver sends with each
+	 *                          notification
+	 */
+	public ActiveTask(String taskId, String externalTaskId, String subscriptionId, String notificationToken) {
 		this.taskId = taskId;
 		this.externalTaskId = externalTaskId;
+		this.subscriptionId = subscriptionId;
+		this.notificationToken = notificationToken;
+	}
+
+	/**
+	 * @param externalVersionId   - meta.versionId of the receiver task when it was
+	 *                            last synchronized
+	 * @param externalLastUpdated - meta.lastUpdated of the receiver task when it
+	 *                            was last synchronized
+	 */
+	public ActiveTask(
+			String taskId,
+			String externalTaskId,
+			String subscriptionId,
+			String notificationToken,
+			String externalVersionId,
+			String externalLastUpdated) {
+		this(taskId, externalTaskId, subscriptionId, notificationToken);
+		this.externalVersionId = externalVersionId;
+		this.externalLastUpdated = externalLastUpdated;
 	}
 
 	public String getTaskId() {
@@ -20,10 +56,32 @@ public class ActiveTask {
 		return this.externalTaskId;
 	}
 
+	public String getSubscriptionId() {
+		return this.subscriptionId;
+	}
+
+	public String getNotificationToken() {
+		return this.notificationToken;
+	}
+
+	public String getExternalVersionId() {
+		return this.externalVersionId;
+	}
+
+	public String getExternalLastUpdated() {
+		return this.externalLastUpdated;
+	}
+
+	/**
+	 * The synchronized receiver version is not included, it is only written by
+	 * Database.updateActiveTaskVersion
+	 */
 	public Map<String, Object> toMap() {
 		HashMap<String, Object> map = new HashMap<>();
 		map.put("taskId", this.taskId);
 		map.put("externalTaskId", this.externalTaskId);
+		map.put("subscriptionId", this.subscriptionId);
+		map.put("notificationToken", this.notificationToken);
 		return map;
 	}
 
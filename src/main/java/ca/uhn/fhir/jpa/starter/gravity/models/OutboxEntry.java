@@ -0,0 +1,128 @@
+package ca.uhn.fhir.jpa.starter.gravity.models;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A pending delivery of a referral Task to its receiver server
+ */
+public class OutboxEntry {
+	/**
+	 * nextAttempt of an entry written inside a transaction which has not
+	 * committed yet, so the dispatcher does not send a Task that may still be
+	 * rolled back
+	 */
+	public static final long PENDING_COMMIT = Long.MAX_VALUE;
+
+	private String id;
+	private String taskId;
+	private Integer shard;
+	private String receiverUrl;
+	private String payload;
+	private int attempts;
+	private long nextAttempt;
+	private String lastError;
+
+	/**
+	 * @param shard       - the shard of the task, only the node leasing it
+	 *                    delivers the entry
+	 * @param nextAttempt - epoch millis of the first attempt, PENDING_COMMIT to
+	 *                    wait until the entry is marked due
+	 */
+	public OutboxEntry(String taskId, int shard, String receiverUrl, String payload, long nextAttempt) {
+		this(UUID.randomUUID().toString(), taskId, shard, receiverUrl, payload, 0, nextAttempt, null);
+	}
+
+	public OutboxEntry(
+			String id,
+			String taskId,
+			Integer shard,
+			String receiverUrl,
+			String payload,
+			int attempts,
+			long nextAttempt,
+			String lastError) {
+		this.id = id;
+		this.taskId = taskId;
+		this.shard = shard;
+		this.receiverUrl = receiverUrl;
+		this.payload = payload;
+		this.attempts = attempts;
+		this.nextAttempt = nextAttempt;
+		this.lastError = lastError;
+	}
+
+	public String getId() {
+		return this.id;
+	}
+
+	public String getTaskId() {
+		return this.taskId;
+	}
+
+	/**
+	 * @return the shard of the task, null for entries written before shards
+	 *         were recorded
+	 */
+	public Integer getShard() {
+		return this.shard;
+	}
+
+	public String getReceiverUrl() {
+		return this.receiverUrl;
+	}
+
+	/**
+	 * @return the Task to send, encoded as JSON
+	 */
+	public String getPayload() {
+		return this.payload;
+	}
+
+	public int getAttempts() {
+		return this.attempts;
+	}
+
+	/**
+	 * @return epoch millis before which the entry is not retried
+	 */
+	public long getNextAttempt() {
+		return this.nextAttempt;
+	}
+
+	public String getLastError() {
+		return this.lastError;
+	}
+
+	/**
+	 * Record a failed delivery attempt
+	 *
+	 * @param error       - why the attempt failed
+	 * @param nextAttempt - epoch millis of the next attempt
+	 */
+	public void recordFailure(String error, long nextAttempt) {
+		this.attempts++;
+		this.lastError = error;
+		this.nextAttempt = nextAttempt;
+	}
+
+	public Map<String, Object> toMap() {
+		HashMap<String, Object> map = new HashMap<>();
+		map.put("id", this.id);
+		map.put("taskId", this.taskId);
+		map.put("shard", this.shard);
+		map.put("receiverUrl", this.receiverUrl);
+		map.put("payload", this.payload);
+		map.put("attempts", this.attempts);
+		map.put("nextAttempt", this.nextAttempt);
+		map.put("lastError", this.lastError);
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		return "OutboxEntry " + this.id + " (Task " + this.taskId + " to " + this.receiverUrl + ", attempt "
+				+ this.attempts + ")";
+	}
+}
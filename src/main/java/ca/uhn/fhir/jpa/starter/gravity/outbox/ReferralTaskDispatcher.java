@@ -0,0 +1,182 @@
+package ca.uhn.fhir.jpa.starter.gravity.outbox;
+
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.ServerLogger;
+import ca.uhn.fhir.jpa.starter.authorization.AuthorizationController;
+import ca.uhn.fhir.jpa.starter.authorization.Database;
+import ca.uhn.fhir.jpa.starter.gravity.models.OutboxEntry;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Delivers the referral Tasks queued in the TaskOutbox table. Due entries are
+ * picked up every poll interval (or right away after wakeUp) and sent on a
+ * fixed pool, with at most max_concurrent_per_receiver deliveries in flight
+ * per receiver so one slow receiver cannot take every thread. Failed attempts
+ * are retried with exponential backoff until max_attempts is reached.
+ */
+public class ReferralTaskDispatcher {
+	private static final Logger logger = ServerLogger.getLogger();
+	private static final int BATCH_SIZE = 100;
+
+	private final AppProperties.Referral.Outbox properties;
+	private final Predicate<OutboxEntry> deliverer;
+	private final Predicate<String> ownsTask;
+	private final String nodeId;
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService deliveryPool;
+	private final Map<String, Semaphore> receiverPermits = new ConcurrentHashMap<>();
+	private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param properties - pool size, concurrency, retry and backoff settings
+	 * @param deliverer  - sends the entry's Task, returning true once the receiver
+	 *                   accepted it
+	 * @param ownsTask   - whether this node delivers the task with the given ID,
+	 *                   entries of other nodes' tasks are left to them
+	 * @param nodeId     - this node, only the entries of the shards it leases are
+	 *                   read from the outbox
+	 */
+	public ReferralTaskDispatcher(
+			AppProperties.Referral.Outbox properties,
+			Predicate<OutboxEntry> deliverer,
+			Predicate<String> ownsTask,
+			String nodeId) {
+		this.properties = properties;
+		this.deliverer = deliverer;
+		this.ownsTask = ownsTask;
+		this.nodeId = nodeId;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory("referral-outbox-scan-"));
+		int poolSize = properties.getPool_size();
+		this.deliveryPool = new ThreadPoolExecutor(
+				poolSize,
+				poolSize,
+				0L,
+				TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(BATCH_SIZE),
+				threadFactory("referral-outbox-"));
+	}
+
+	public void start() {
+		long interval = properties.getPoll_interval_ms();
+		scheduler.scheduleWithFixedDelay(this::dispatchDue, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Look for due entries now instead of waiting for the next poll, e.g. after
+	 * the transaction writing a new entry committed
+	 */
+	public void wakeUp() {
+		try {
+			scheduler.execute(this::dispatchDue);
+		} catch (RejectedExecutionException e) {
+			logger.fine("ReferralTaskDispatcher::wakeUp after shutdown");
+		}
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+		deliveryPool.shutdown();
+		try {
+			if (!deliveryPool.awaitTermination(10, TimeUnit.SECONDS)) deliveryPool.shutdownNow();
+		} catch (InterruptedException e) {
+			deliveryPool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void dispatchDue() {
+		Database db = AuthorizationController.getDB();
+		if (db == null) return;
+		try {
+			// The shards are filtered in the query, so a batch is not filled with the
+			// entries of other nodes. ownsTask still applies the local lease margin.
+			List<OutboxEntry> entries = db.readDueOutboxEntries(System.currentTimeMillis(), nodeId, BATCH_SIZE);
+			for (OutboxEntry entry : entries) {
+				if (!ownsTask.test(entry.getTaskId())) continue;
+				if (!inFlight.add(entry.getId())) continue;
+				Semaphore permits = receiverPermits.computeIfAbsent(
+						entry.getReceiverUrl(), key -> new Semaphore(properties.getMax_concurrent_per_receiver()));
+				if (!permits.tryAcquire()) {
+					// Receiver is at its limit, the entry is picked up again on a later scan
+					inFlight.remove(entry.getId());
+					continue;
+				}
+				try {
+					deliveryPool.execute(() -> deliver(db, entry, permits));
+				} catch (RejectedExecutionException e) {
+					permits.release();
+					inFlight.remove(entry.getId());
+				}
+			}
+		} catch (Exception e) {
+			logger.severe("ReferralTaskDispatcher::Failed to dispatch outbox entries: " + e.getMessage());
+		}
+	}
+
+	private void deliver(Database db, OutboxEntry entry, Semaphore permits) {
+		try {
+			String error = null;
+			boolean delivered;
+			try {
+				delivered = deliverer.test(entry);
+			} catch (Exception e) {
+				delivered = false;
+				error = e.getMessage();
+			}
+
+			if (delivered) {
+				db.deleteOutboxEntry(entry.getId());
+			} else if (entry.getAttempts() + 1 >= properties.getMax_attempts()) {
+				logger.severe("Giving up on " + entry + " after " + (entry.getAttempts() + 1) + " attempts: "
+						+ (error != null ? error : entry.getLastError()));
+				db.deleteOutboxEntry(entry.getId());
+			} else {
+				long backoff = backoff(entry.getAttempts());
+				entry.recordFailure(
+						error != null ? error : "Receiver did not accept the task",
+						System.currentTimeMillis() + backoff);
+				logger.warning("Failed to deliver " + entry + ", retrying in " + backoff + " ms");
+				db.updateOutboxEntry(entry);
+			}
+		} finally {
+			permits.release();
+			inFlight.remove(entry.getId());
+		}
+	}
+
+	/**
+	 * @return initial_backoff_ms doubled for every previous attempt, capped at
+	 *         max_backoff_ms
+	 */
+	private long backoff(int previousAttempts) {
+		long initial = properties.getInitial_backoff_ms();
+		long max = properties.getMax_backoff_ms();
+		int shift = Math.min(previousAttempts, 30);
+		return Math.min(max, initial << shift);
+	}
+
+	private static ThreadFactory threadFactory(String prefix) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
@@ -0,0 +1,134 @@
+package ca.uhn.fhir.jpa.starter.gravity.transform;
+
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.ServerLogger;
+import jakarta.annotation.PostConstruct;
+import org.hl7.fhir.utilities.FhirPublication;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+/**
+ * Pool of ValidationEngines loaded with the R4 core package and the configured
+ * IG packages, used to run the StructureMap transforms of completed patient
+ * Tasks. Loading the packages takes seconds and hundreds of MB, so the engines
+ * are built once (in the background at startup when engine_prewarm is set,
+ * otherwise on first use) and reused. A ValidationEngine is not thread safe,
+ * so each one is lent to a single caller at a time; callers wait when all
+ * engines are busy. reload() rebuilds the engines, e.g. after the IG packages
+ * changed (see TransformEngineEndpoint).
+ */
+@Component
+public class TransformEngine {
+	private static final Logger logger = ServerLogger.getLogger();
+
+	private static final String CORE_PACKAGE = "hl7.fhir.r4.core#4.0.1";
+
+	@FunctionalInterface
+	public interface EngineTask<T> {
+		T apply(ValidationEngine engine) throws Exception;
+	}
+
+	@Autowired
+	AppProperties appProperties;
+
+	private volatile BlockingQueue<ValidationEngine> engines;
+
+	@PostConstruct
+	protected void postConstruct() {
+		if (appProperties.getExtraction().getEngine_prewarm()) {
+			Thread prewarm = new Thread(
+					() -> {
+						try {
+							getEngines();
+						} catch (Exception e) {
+							logger.warning("TransformEngine::prewarm: " + e.getMessage());
+						}
+					},
+					"transform-engine-prewarm");
+			prewarm.setDaemon(true);
+			prewarm.start();
+		}
+	}
+
+	/**
+	 * Run the given task with an engine of the pool
+	 *
+	 * @param task - the work to do with the engine, e.g. a transform
+	 * @return the result of the task
+	 * @throws Exception when the engines cannot be built or the task fails
+	 */
+	public <T> T execute(EngineTask<T> task) throws Exception {
+		BlockingQueue<ValidationEngine> pool = getEngines();
+		ValidationEngine engine = pool.take();
+		try {
+			return task.apply(engine);
+		} finally {
+			pool.offer(engine);
+		}
+	}
+
+	/**
+	 * Build a new set of engines and replace the current ones. Transforms already
+	 * running finish on the previous engines.
+	 *
+	 * @throws Exception when a package cannot be loaded, the current engines are
+	 *                   kept in that case
+	 */
+	public void reload() throws Exception {
+		BlockingQueue<ValidationEngine> pool = buildEngines();
+		synchronized (this) {
+			engines = pool;
+		}
+		logger.info("TransformEngine::reload: engines rebuilt");
+	}
+
+	public boolean isLoaded() {
+		return engines != null;
+	}
+
+	private BlockingQueue<ValidationEngine> getEngines() throws Exception {
+		BlockingQueue<ValidationEngine> pool = engines;
+		if (pool == null) {
+			synchronized (this) {
+				if (engines == null) {
+					engines = buildEngines();
+				}
+				pool = engines;
+			}
+		}
+		return pool;
+	}
+
+	private BlockingQueue<ValidationEngine> buildEngines() throws Exception {
+		AppProperties.Extraction properties = appProperties.getExtraction();
+		int size = Math.max(1, properties.getEngine_pool_size());
+		BlockingQueue<ValidationEngine> pool = new ArrayBlockingQueue<>(size);
+		for (int i = 0; i < size; i++) {
+			pool.add(buildEngine(properties.getIg_packages()));
+		}
+		return pool;
+	}
+
+	private ValidationEngine buildEngine(List<String> packages) throws Exception {
+		long start = System.currentTimeMillis();
+		ValidationEngine engine = new ValidationEngine.ValidationEngineBuilder()
+				.withVersion("4.0.1")
+				.withNoTerminologyServer()
+				.fromSource(CORE_PACKAGE);
+		for (String igPackage : packages) {
+			String[] parts = igPackage.split("#");
+			engine.loadPackage(parts[0], parts.length > 1 ? parts[1] : null);
+		}
+		engine.setVersion(FhirPublication.R4.toCode());
+		engine.setAllowExampleUrls(true);
+		logger.info("TransformEngine::buildEngine: loaded " + packages + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return engine;
+	}
+}
@@ -0,0 +1,33 @@
+package ca.uhn.fhir.jpa.starter.gravity.transform;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Actuator endpoint rebuilding the transform engines after the extraction IG
+ * packages changed. Like the other actuator endpoints it is disabled unless
+ * enabled and exposed under management.endpoint(s).
+ */
+@Component
+@Endpoint(id = "transformengine")
+public class TransformEngineEndpoint {
+
+	@Autowired
+	TransformEngine transformEngine;
+
+	@ReadOperation
+	public Map<String, Object> status() {
+		return Map.of("loaded", transformEngine.isLoaded());
+	}
+
+	@WriteOperation
+	public Map<String, Object> reload() throws Exception {
+		transformEngine.reload();
+		return status();
+	}
+}
@@ -0,0 +1,244 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsHooksProperties;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsHooksServlet;
+import ca.uhn.fhir.jpa.starter.cdshooks.ErrorHandling;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.when;
+
+class CdsHooksServletTest {
+	private static final String HOOK_REQUEST =
+			"{\"hook\":\"patient-view\",\"hookInstance\":\"1\",\"context\":{\"patientId\":\"123\"}}";
+
+	private ICdsServiceRegistry registry;
+	private CdsHooksProperties properties;
+	private CdsHooksServlet servlet;
+	private CountDownLatch release;
+	private AtomicBoolean interrupted;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		CdsServicesJson services = new CdsServicesJson();
+		services.addService(new CdsServiceJson().setId("service").setHook("patient-view").setDescription("service"));
+		registry = mock(ICdsServiceRegistry.class);
+		when(registry.getCdsServicesJson()).thenReturn(services);
+		when(registry.getCdsServiceJson("service")).thenReturn(services.getServices().get(0));
+		// hook calls block until released
+		release = new CountDownLatch(1);
+		interrupted = new AtomicBoolean();
+		when(registry.callService(eq("service"), any())).thenAnswer(invocation -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				interrupted.set(true);
+				throw e;
+			}
+			return new CdsServiceResponseJson();
+		});
+		properties = new CdsHooksProperties();
+	}
+
+	@AfterEach
+	void tearDown() {
+		release.countDown();
+		if (servlet != null) {
+			servlet.destroy();
+		}
+	}
+
+	@Test
+	void testDiscoveryIsNotModifiedForItsEtag() throws Exception {
+		servlet = servlet();
+		MockHttpServletResponse first = discovery(null, null);
+		Assertions.assertEquals(200, first.getStatus());
+		String etag = first.getHeader("ETag");
+		Assertions.assertNotNull(etag);
+		Assertions.assertTrue(first.getContentAsByteArray().length > 0);
+
+		MockHttpServletResponse second = discovery(etag, null);
+		Assertions.assertEquals(304, second.getStatus());
+		Assertions.assertEquals(etag, second.getHeader("ETag"));
+		Assertions.assertEquals(0, second.getContentAsByteArray().length);
+	}
+
+	@Test
+	void testDiscoveryIsGzippedWhenAccepted() throws Exception {
+		servlet = servlet();
+		MockHttpServletResponse plain = discovery(null, null);
+		MockHttpServletResponse gzipped = discovery(null, "br, gzip;q=0.8");
+		Assertions.assertEquals("gzip", gzipped.getHeader("Content-Encoding"));
+		Assertions.assertEquals("Accept-Encoding", gzipped.getHeader("Vary"));
+		Assertions.assertNotEquals(plain.getHeader("ETag"), gzipped.getHeader("ETag"));
+		try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(gzipped.getContentAsByteArray()))) {
+			Assertions.assertArrayEquals(plain.getContentAsByteArray(), gzip.readAllBytes());
+		}
+
+		MockHttpServletResponse refused = discovery(null, "gzip;q=0");
+		Assertions.assertNull(refused.getHeader("Content-Encoding"));
+	}
+
+	@Test
+	void testCallsAboveTheServiceLimitAreThrottled() throws Exception {
+		properties.getExecution().setMaxConcurrentPerService(1);
+		servlet = servlet();
+		MockHttpServletRequest first = hookRequest();
+		MockHttpServletResponse firstResponse = new MockHttpServletResponse();
+		servlet.service(first, firstResponse);
+		Assertions.assertTrue(first.isAsyncStarted());
+
+		MockHttpServletResponse throttled = call();
+		Assertions.assertEquals(429, throttled.getStatus());
+		Assertions.assertEquals("1", throttled.getHeader("Retry-After"));
+
+		release.countDown();
+		await().atMost(Duration.ofSeconds(10)).until(() -> !first.isAsyncStarted());
+		Assertions.assertEquals(200, firstResponse.getStatus());
+		Assertions.assertTrue(firstResponse.getContentAsString().contains("cards"), firstResponse.getContentAsString());
+	}
+
+	@Test
+	void testCallsAboveTheQueueCapacityAreRejected() throws Exception {
+		properties.getExecution().setPoolSize(1);
+		properties.getExecution().setQueueCapacity(1);
+		servlet = servlet();
+		MockHttpServletRequest running = hookRequest();
+		servlet.service(running, new MockHttpServletResponse());
+		MockHttpServletRequest queued = hookRequest();
+		servlet.service(queued, new MockHttpServletResponse());
+
+		MockHttpServletResponse rejected = call();
+		Assertions.assertEquals(503, rejected.getStatus());
+		Assertions.assertEquals("1", rejected.getHeader("Retry-After"));
+		Assertions.assertTrue(rejected.getContentAsString().startsWith("Too many pending"), rejected.getContentAsString());
+
+		release.countDown();
+		await().atMost(Duration.ofSeconds(10)).until(() -> !running.isAsyncStarted() && !queued.isAsyncStarted());
+	}
+
+	@Test
+	void testTimedOutCallIsCancelledAndAnsweredOnce() throws Exception {
+		properties.getExecution().setMaxConcurrentPerService(1);
+		servlet = servlet();
+		MockHttpServletRequest request = hookRequest();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.service(request, response);
+		await().atMost(Duration.ofSeconds(10)).until(() -> mockingDetails(registry).getInvocations().stream()
+				.anyMatch(invocation -> invocation.getMethod().getName().equals("callService")));
+
+		MockAsyncContext asyncContext = (MockAsyncContext) request.getAsyncContext();
+		for (AsyncListener listener : asyncContext.getListeners()) {
+			listener.onTimeout(new AsyncEvent(asyncContext));
+		}
+		Assertions.assertFalse(request.isAsyncStarted());
+		Assertions.assertEquals(503, response.getStatus());
+		String body = response.getContentAsString();
+		Assertions.assertTrue(body.startsWith("Timed out calling cds-hooks service service"), body);
+
+		// the worker is interrupted, its failure does not touch the answered response, and
+		// its permit is released
+		await().atMost(Duration.ofSeconds(10)).until(interrupted::get);
+		release.countDown();
+		await().atMost(Duration.ofSeconds(10)).until(() -> {
+			MockHttpServletRequest next = hookRequest();
+			servlet.service(next, new MockHttpServletResponse());
+			return next.isAsyncStarted();
+		});
+		Assertions.assertEquals(503, response.getStatus());
+		Assertions.assertEquals(body, response.getContentAsString());
+	}
+
+	@Test
+	void testFailedCallIsAnsweredWithoutStackTrace() throws Exception {
+		when(registry.callService(eq("service"), any())).thenThrow(new IllegalStateException("internal detail"));
+		servlet = servlet();
+		MockHttpServletRequest request = hookRequest();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.service(request, response);
+		await().atMost(Duration.ofSeconds(10)).until(() -> !request.isAsyncStarted());
+
+		Assertions.assertEquals(500, response.getStatus());
+		Assertions.assertEquals("ERROR: Exception in cds-hooks processing.\n", response.getContentAsString());
+	}
+
+	@Test
+	void testRejectedAccessTokenIsAnsweredWithItsOwnStatus() throws Exception {
+		when(registry.callService(eq("service"), any()))
+				.thenThrow(new ErrorHandling.LocalAuthorizationError(401, "Token has expired", null));
+		servlet = servlet();
+		MockHttpServletRequest request = hookRequest();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.service(request, response);
+		await().atMost(Duration.ofSeconds(10)).until(() -> !request.isAsyncStarted());
+
+		Assertions.assertEquals(401, response.getStatus());
+		Assertions.assertEquals("ERROR: Token has expired\n", response.getContentAsString());
+	}
+
+	private MockHttpServletResponse call() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.service(hookRequest(), response);
+		return response;
+	}
+
+	private static MockHttpServletRequest hookRequest() {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/cds-services/service");
+		request.setPathInfo("/service");
+		request.setAsyncSupported(true);
+		request.setContentType("application/json");
+		request.setContent(HOOK_REQUEST.getBytes(StandardCharsets.UTF_8));
+		return request;
+	}
+
+	private MockHttpServletResponse discovery(String ifNoneMatch, String acceptEncoding) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cds-services");
+		if (ifNoneMatch != null) {
+			request.addHeader("If-None-Match", ifNoneMatch);
+		}
+		if (acceptEncoding != null) {
+			request.addHeader("Accept-Encoding", acceptEncoding);
+		}
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.service(request, response);
+		return response;
+	}
+
+	@SuppressWarnings("unchecked")
+	private CdsHooksServlet servlet() throws Exception {
+		CdsHooksServlet cdsHooksServlet = new CdsHooksServlet();
+		ReflectionTestUtils.setField(cdsHooksServlet, "appProperties", new AppProperties());
+		ReflectionTestUtils.setField(cdsHooksServlet, "cdsHooksProperties", properties);
+		ReflectionTestUtils.setField(cdsHooksServlet, "cdsServiceRegistry", registry);
+		ReflectionTestUtils.setField(cdsHooksServlet, "objectMapper", new ObjectMapper());
+		ReflectionTestUtils.setField(cdsHooksServlet, "meterRegistry", mock(ObjectProvider.class));
+		cdsHooksServlet.init();
+		return cdsHooksServlet;
+	}
+}
@@ -0,0 +1,71 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.cdshooks.DiscoveryDocumentCache;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+class DiscoveryDocumentCacheTest {
+	private DiscoveryDocumentCache cache;
+	private CdsServicesJson services;
+
+	@BeforeEach
+	void setUp() {
+		cache = new DiscoveryDocumentCache(new ObjectMapper().writer());
+		services = new CdsServicesJson();
+		services.addService(service("first"));
+	}
+
+	@Test
+	void testDocumentIsReusedWhileTheServicesAreUnchanged() throws IOException {
+		DiscoveryDocumentCache.Document document = cache.get(services);
+		Assertions.assertSame(document, cache.get(services));
+	}
+
+	@Test
+	void testDocumentIsRebuiltWhenAServiceChanges() throws IOException {
+		DiscoveryDocumentCache.Document document = cache.get(services);
+
+		// a PlanDefinition update registers a new CdsServiceJson under the same id
+		CdsServicesJson updated = new CdsServicesJson();
+		updated.addService(service("first").setDescription("updated"));
+		DiscoveryDocumentCache.Document rebuilt = cache.get(updated);
+		Assertions.assertNotSame(document, rebuilt);
+		Assertions.assertNotEquals(document.getEtag(false), rebuilt.getEtag(false));
+
+		updated.addService(service("second"));
+		Assertions.assertNotSame(rebuilt, cache.get(updated));
+	}
+
+	@Test
+	void testGzipBodyHasItsOwnEtag() throws IOException {
+		DiscoveryDocumentCache.Document document = cache.get(services);
+		Assertions.assertNotEquals(document.getEtag(false), document.getEtag(true));
+		Assertions.assertTrue(document.getEtag(false).startsWith("\"") && document.getEtag(false).endsWith("\""));
+		try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(document.getBody(true)))) {
+			Assertions.assertArrayEquals(document.getBody(false), gzip.readAllBytes());
+		}
+	}
+
+	@Test
+	void testIfNoneMatch() throws IOException {
+		DiscoveryDocumentCache.Document document = cache.get(services);
+		Assertions.assertTrue(document.matches(document.getEtag(false)));
+		Assertions.assertTrue(document.matches(document.getEtag(true)));
+		Assertions.assertTrue(document.matches("\"other\", W/" + document.getEtag(false)));
+		Assertions.assertTrue(document.matches("*"));
+		Assertions.assertFalse(document.matches("\"other\""));
+		Assertions.assertFalse(document.matches(null));
+	}
+
+	private static CdsServiceJson service(String id) {
+		return new CdsServiceJson().setId(id).setHook("patient-view").setDescription(id);
+	}
+}
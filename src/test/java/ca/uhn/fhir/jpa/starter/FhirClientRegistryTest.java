@@ -0,0 +1,117 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.gravity.client.FhirClientRegistry;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+class FhirClientRegistryTest {
+	private FhirClientRegistry registry;
+
+	@AfterEach
+	void tearDown() {
+		ReflectionTestUtils.invokeMethod(registry, "preDestroy");
+	}
+
+	@Test
+	void testClientIsSharedPerBaseUrl() {
+		registry = registry(new AppProperties.RestClient());
+		try (FhirClientRegistry.Lease lease = registry.lease("http://receiver.example/fhir");
+				FhirClientRegistry.Lease same = registry.lease("http://receiver.example/fhir/");
+				FhirClientRegistry.Lease other = registry.lease("http://other.example/fhir")) {
+			Assertions.assertSame(lease.getClient(), same.getClient());
+			Assertions.assertNotSame(lease.getClient(), other.getClient());
+		}
+	}
+
+	@Test
+	void testEvictedClientIsReplaced() {
+		registry = registry(new AppProperties.RestClient());
+		IGenericClient client = client("http://receiver.example/fhir");
+		registry.evict("http://receiver.example/fhir/");
+		Assertions.assertNotSame(client, client("http://receiver.example/fhir"));
+	}
+
+	@Test
+	void testIdleClientIsReplaced() throws InterruptedException {
+		AppProperties.RestClient properties = new AppProperties.RestClient();
+		properties.setClient_idle_ms(50L);
+		registry = registry(properties);
+		IGenericClient client = client("http://receiver.example/fhir");
+		Thread.sleep(200);
+		Assertions.assertNotSame(client, client("http://receiver.example/fhir"));
+	}
+
+	@Test
+	void testClientEvictedDuringARequestIsClosedAfterIt() throws Exception {
+		CountDownLatch received = new CountDownLatch(1);
+		CountDownLatch respond = new CountDownLatch(1);
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/fhir/Patient/1", exchange -> {
+			received.countDown();
+			try {
+				respond.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			byte[] body = "{\"resourceType\":\"Patient\",\"id\":\"1\"}".getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		try {
+			registry = registry(new AppProperties.RestClient());
+			String baseUrl = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+			FhirClientRegistry.Lease lease = registry.lease(baseUrl);
+			IGenericClient client = lease.getClient();
+			CompletableFuture<Patient> read = CompletableFuture.supplyAsync(() -> {
+				try (lease) {
+					return client.read().resource(Patient.class).withId("1").execute();
+				}
+			});
+			Assertions.assertTrue(received.await(10, TimeUnit.SECONDS));
+
+			// the evicted client keeps serving the request in flight
+			registry.evict(baseUrl);
+			respond.countDown();
+			Assertions.assertEquals("1", read.get(10, TimeUnit.SECONDS).getIdPart());
+
+			// and is closed once its lease is released
+			Assertions.assertThrows(
+					FhirClientConnectionException.class,
+					() -> client.read().resource(Patient.class).withId("1").execute());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	private IGenericClient client(String baseUrl) {
+		try (FhirClientRegistry.Lease lease = registry.lease(baseUrl)) {
+			return lease.getClient();
+		}
+	}
+
+	private static FhirClientRegistry registry(AppProperties.RestClient properties) {
+		AppProperties appProperties = new AppProperties();
+		appProperties.setRest_client(properties);
+		FhirClientRegistry registry = new FhirClientRegistry();
+		ReflectionTestUtils.setField(registry, "appProperties", appProperties);
+		ReflectionTestUtils.invokeMethod(registry, "postConstruct");
+		return registry;
+	}
+}
@@ -0,0 +1,76 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.authorization.JwtKeyMaterial;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTVerifier;
+import com.auth0.jwt.exceptions.JWTVerificationException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Instant;
+import java.util.Date;
+
+class JwtKeyMaterialTest {
+	private static final String BASE = "http://localhost:8080/fhir";
+
+	private static JwtKeyMaterial keyMaterial;
+
+	@BeforeAll
+	static void setUpKeys() throws NoSuchAlgorithmException {
+		keyMaterial = keyMaterial("kid-1");
+	}
+
+	@Test
+	void testVerifierIsReusedPerIssuerAndAudience() {
+		JWTVerifier verifier = keyMaterial.getVerifier(BASE, BASE);
+		Assertions.assertSame(verifier, keyMaterial.getVerifier(BASE, BASE));
+		Assertions.assertNotSame(verifier, keyMaterial.getVerifier("http://other/fhir", BASE));
+		Assertions.assertNotSame(verifier, keyMaterial.getVerifier(BASE, "http://other/fhir"));
+	}
+
+	@Test
+	void testVerifierChecksIssuerAudienceAndSignature() throws NoSuchAlgorithmException {
+		String token = token(keyMaterial, BASE);
+		Assertions.assertEquals("kid-1", keyMaterial.getVerifier(BASE, BASE).verify(token).getKeyId());
+		Assertions.assertThrows(
+				JWTVerificationException.class, () -> keyMaterial.getVerifier("http://other/fhir", BASE).verify(token));
+		Assertions.assertThrows(
+				JWTVerificationException.class, () -> keyMaterial.getVerifier(BASE, "http://other/fhir").verify(token));
+
+		// the verifiers of rotated keys reject tokens of the previous keys
+		JwtKeyMaterial rotated = keyMaterial("kid-2");
+		Assertions.assertThrows(JWTVerificationException.class, () -> rotated.getVerifier(BASE, BASE).verify(token));
+	}
+
+	static JwtKeyMaterial keyMaterial(String keyId) throws NoSuchAlgorithmException {
+		KeyPair keyPair = keyPair();
+		return new JwtKeyMaterial(keyId, (RSAPublicKey) keyPair.getPublic(), (RSAPrivateKey) keyPair.getPrivate());
+	}
+
+	static KeyPair keyPair() throws NoSuchAlgorithmException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		return generator.generateKeyPair();
+	}
+
+	static String token(JwtKeyMaterial keyMaterial, String base) {
+		return token(keyMaterial, base, Instant.now().plusSeconds(300));
+	}
+
+	static String token(JwtKeyMaterial keyMaterial, String base, Instant exp) {
+		return JWT.create()
+				.withKeyId(keyMaterial.getKeyId())
+				.withIssuer(base)
+				.withAudience(base)
+				.withIssuedAt(new Date())
+				.withExpiresAt(Date.from(exp))
+				.withClaim("client_id", "client")
+				.sign(keyMaterial.getAlgorithm());
+	}
+}
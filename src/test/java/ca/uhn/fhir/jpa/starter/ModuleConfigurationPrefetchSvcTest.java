@@ -0,0 +1,233 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsHooksProperties;
+import ca.uhn.fhir.jpa.starter.cdshooks.ErrorHandling;
+import ca.uhn.fhir.jpa.starter.cdshooks.ModuleConfigurationPrefetchSvc;
+import ca.uhn.fhir.jpa.starter.cdshooks.UdsLabValueSet;
+import ca.uhn.fhir.jpa.starter.gravity.interceptors.SmartAuthInterceptor;
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestAuthorizationJson;
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestContextJson;
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestJson;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsHooksDaoAuthorizationSvc;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceMethod;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchDaoSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchFhirClientSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsResolutionStrategySvc;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ModuleConfigurationPrefetchSvcTest {
+	private static final String SERVER = "http://localhost:8080/fhir";
+
+	private CdsPrefetchDaoSvc dao;
+	private AppProperties appProperties;
+	private CdsHooksProperties properties;
+	private ModuleConfigurationPrefetchSvc prefetchSvc;
+
+	@BeforeEach
+	void setUp() {
+		dao = mock(CdsPrefetchDaoSvc.class);
+		when(dao.getFhirContext()).thenReturn(FhirContext.forR4Cached());
+		when(dao.resourceFromUrl(anyString())).thenAnswer(invocation -> new Bundle());
+		appProperties = new AppProperties();
+		appProperties.setServer_address(SERVER + "/");
+		properties = new CdsHooksProperties();
+		prefetchSvc = prefetchSvc(new SmartAuthInterceptor(appProperties));
+	}
+
+	private ModuleConfigurationPrefetchSvc prefetchSvc(SmartAuthInterceptor tokenAuthorizer) {
+		return new ModuleConfigurationPrefetchSvc(
+				mock(CdsResolutionStrategySvc.class),
+				dao,
+				mock(CdsPrefetchFhirClientSvc.class),
+				mock(ICdsHooksDaoAuthorizationSvc.class),
+				mock(IInterceptorBroadcaster.class),
+				properties,
+				appProperties,
+				null,
+				tokenAuthorizer,
+				null);
+	}
+
+	@AfterEach
+	void tearDown() {
+		prefetchSvc.shutdown();
+	}
+
+	@Test
+	void testServiceIsPrefetchedWithItsOwnTemplates() {
+		CdsServiceJson service = new CdsServiceJson().setId("plan-definition-service");
+		service.addPrefetch("patient", "Patient/{{context.patientId}}");
+		service.addPrefetch("conditions", "Condition?patient={{context.patientId}}&clinical-status=active");
+		CdsServiceRequestJson request = request();
+
+		prefetchSvc.augmentRequest(request, method(service));
+
+		Assertions.assertEquals(Set.of("patient", "conditions"), request.getPrefetchKeys());
+		Assertions.assertEquals(
+				Set.of("Patient/123", "Condition?patient=123&clinical-status=active"), Set.copyOf(queriedUrls()));
+	}
+
+	@Test
+	void testModuleShapedServiceIsPrefetchedWithTheModuleTemplates() {
+		CdsServiceJson service = new CdsServiceJson().setId("uds-plus");
+		service.addPrefetch("item1", "Patient/{{context.patientId}}");
+		service.addPrefetch("item2", "MedicationRequest?subject={{context.patientId}}");
+		service.addPrefetch("item3", "Condition?patient={{context.patientId}}");
+		service.addPrefetch("item4", "Encounter?patient={{context.patientId}}");
+		service.addPrefetch("item5", "ServiceRequest?patient={{context.patientId}}");
+		service.addPrefetch("item6", "Observation?subject={{context.patientId}}&code=1-8");
+		service.addPrefetch("item7", "Observation?subject={{context.patientId}}&code=2-6");
+		CdsServiceRequestJson request = request();
+		// prefetch sent by the EHR is not queried again
+		request.addPrefetch("item1", new Bundle());
+
+		prefetchSvc.augmentRequest(request, method(service));
+
+		Assertions.assertEquals(
+				Set.of("item1", "item2", "item3", "item4", "item5", "item6"), request.getPrefetchKeys());
+		List<String> urls = queriedUrls();
+		Assertions.assertEquals(5, urls.size());
+		Assertions.assertTrue(urls.stream().noneMatch(url -> url.startsWith("Patient/")), urls.toString());
+		Assertions.assertTrue(
+				urls.stream().anyMatch(url -> url.startsWith("Observation?") && url.endsWith("&code=" + UdsLabValueSet.CODES)),
+				urls.toString());
+		Assertions.assertTrue(urls.stream().noneMatch(url -> url.contains("code:in")), urls.toString());
+	}
+
+	@Test
+	void testTemplateWithMissingContextIsSkippedWhenPartialIsAllowed() {
+		CdsServiceJson service = new CdsServiceJson().setId("plan-definition-service");
+		service.addPrefetch("patient", "Patient/{{context.patientId}}");
+		service.addPrefetch("encounter", "Encounter/{{context.encounterId}}");
+		CdsServiceRequestJson request = request();
+
+		prefetchSvc.augmentRequest(request, method(service));
+
+		Assertions.assertEquals(Set.of("patient"), request.getPrefetchKeys());
+		Assertions.assertEquals(List.of("Patient/123"), queriedUrls());
+	}
+
+	@Test
+	void testTemplateWithMissingContextFailsWithoutPartial() {
+		properties.getPrefetch().setAllowPartial(false);
+		CdsServiceJson service = new CdsServiceJson().setId("plan-definition-service");
+		service.addPrefetch("encounter", "Encounter/{{context.encounterId}}");
+		CdsServiceRequestJson request = request();
+
+		Assertions.assertThrows(
+				InvalidRequestException.class, () -> prefetchSvc.augmentRequest(request, method(service)));
+		verify(dao, never()).resourceFromUrl(anyString());
+	}
+
+	@Test
+	void testLocalPrefetchNeedsAnAccessToken() {
+		CdsServiceJson service = new CdsServiceJson().setId("plan-definition-service");
+		service.addPrefetch("patient", "Patient/{{context.patientId}}");
+		CdsServiceRequestJson request = request();
+		request.setServiceRequestAuthorizationJson(null);
+
+		ErrorHandling.LocalAuthorizationError error = Assertions.assertThrows(
+				ErrorHandling.LocalAuthorizationError.class, () -> prefetchSvc.augmentRequest(request, method(service)));
+		Assertions.assertEquals(401, error.getStatusCode());
+		verify(dao, never()).resourceFromUrl(anyString());
+	}
+
+	@Test
+	void testLocalPrefetchRejectsAnInvalidAccessToken() {
+		CdsServiceJson service = new CdsServiceJson().setId("plan-definition-service");
+		service.addPrefetch("patient", "Patient/{{context.patientId}}");
+		CdsServiceRequestJson request = request();
+		request.getServiceRequestAuthorizationJson().setAccessToken("not-a-jwt");
+
+		ErrorHandling.LocalAuthorizationError error = Assertions.assertThrows(
+				ErrorHandling.LocalAuthorizationError.class, () -> prefetchSvc.augmentRequest(request, method(service)));
+		Assertions.assertEquals(401, error.getStatusCode());
+		verify(dao, never()).resourceFromUrl(anyString());
+	}
+
+	@Test
+	void testLocalPrefetchIsCheckedAgainstTheTokenRules() {
+		properties.getPrefetch().setAllowPartial(false);
+		SmartAuthInterceptor tokenAuthorizer = mock(SmartAuthInterceptor.class);
+		when(tokenAuthorizer.authorizeToken(anyString(), anyString()))
+				.thenReturn(new RuleBuilder()
+						.allow()
+						.read()
+						.resourcesOfType("Patient")
+						.withAnyId()
+						.andThen()
+						.denyAll()
+						.build());
+		prefetchSvc.shutdown();
+		prefetchSvc = prefetchSvc(tokenAuthorizer);
+		Bundle observations = new Bundle();
+		observations.addEntry().setResource(new Observation().setId("Observation/1"));
+		when(dao.resourceFromUrl(anyString())).thenReturn(observations);
+		CdsServiceJson service = new CdsServiceJson().setId("plan-definition-service");
+		service.addPrefetch("labs", "Observation?subject={{context.patientId}}");
+		CdsServiceRequestJson request = request();
+
+		ErrorHandling.LocalAuthorizationError error = Assertions.assertThrows(
+				ErrorHandling.LocalAuthorizationError.class, () -> prefetchSvc.augmentRequest(request, method(service)));
+		Assertions.assertEquals(403, error.getStatusCode());
+		Assertions.assertTrue(request.getPrefetchKeys().isEmpty());
+	}
+
+	@Test
+	void testNothingIsPrefetchedWithoutFhirServer() {
+		CdsServiceJson service = new CdsServiceJson().setId("plan-definition-service");
+		service.addPrefetch("patient", "Patient/{{context.patientId}}");
+		CdsServiceRequestJson request = request();
+		request.setFhirServer(null);
+
+		prefetchSvc.augmentRequest(request, method(service));
+
+		Assertions.assertTrue(request.getPrefetchKeys().isEmpty());
+		verify(dao, never()).resourceFromUrl(anyString());
+	}
+
+	private List<String> queriedUrls() {
+		ArgumentCaptor<String> urls = ArgumentCaptor.forClass(String.class);
+		verify(dao, atLeastOnce()).resourceFromUrl(urls.capture());
+		return urls.getAllValues();
+	}
+
+	private static CdsServiceRequestJson request() {
+		CdsServiceRequestContextJson context = new CdsServiceRequestContextJson();
+		context.put("patientId", "123");
+		CdsServiceRequestJson request = new CdsServiceRequestJson();
+		request.setHook("patient-view");
+		request.setFhirServer(SERVER);
+		request.setContext(context);
+		// the admin token of the default configuration
+		request.setServiceRequestAuthorizationJson(new CdsServiceRequestAuthorizationJson().setAccessToken("admin"));
+		return request;
+	}
+
+	private static ICdsServiceMethod method(CdsServiceJson service) {
+		ICdsServiceMethod method = mock(ICdsServiceMethod.class);
+		when(method.getCdsServiceJson()).thenReturn(service);
+		return method;
+	}
+}
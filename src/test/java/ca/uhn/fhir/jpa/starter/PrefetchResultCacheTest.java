@@ -0,0 +1,98 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsHooksProperties;
+import ca.uhn.fhir.jpa.starter.cdshooks.PrefetchResultCache;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class PrefetchResultCacheTest {
+	private static final String SERVER = "http://localhost:8080/fhir";
+
+	private PrefetchResultCache cache;
+	private AtomicInteger queries;
+
+	@BeforeEach
+	void setUp() {
+		cache = new PrefetchResultCache(FhirContext.forR4Cached(), new CdsHooksProperties.Prefetch());
+		queries = new AtomicInteger();
+	}
+
+	@Test
+	void testResultIsReusedForTheSameCaller() throws Exception {
+		get("token-a");
+		get("token-a");
+		Assertions.assertEquals(1, queries.get());
+	}
+
+	@Test
+	void testResultIsNotReusedForAnotherCaller() throws Exception {
+		get("token-a");
+		get("token-b");
+		get(null);
+		Assertions.assertEquals(3, queries.get());
+	}
+
+	@Test
+	void testEveryCallGetsItsOwnCopy() throws Exception {
+		Patient first = (Patient) get("token-a");
+		first.getNameFirstRep().setFamily("Changed");
+		Patient second = (Patient) get("token-a");
+		Patient third = (Patient) get("token-a");
+
+		Assertions.assertEquals(1, queries.get());
+		Assertions.assertNotSame(second, third);
+		Assertions.assertEquals("Chalmers", second.getNameFirstRep().getFamily());
+		second.getNameFirstRep().setFamily("Changed");
+		Assertions.assertEquals("Chalmers", third.getNameFirstRep().getFamily());
+	}
+
+	@Test
+	void testEvictedPatientIsQueriedAgain() throws Exception {
+		get("token-a");
+		cache.evictPatient("Patient/123");
+		get("token-a");
+		Assertions.assertEquals(2, queries.get());
+	}
+
+	@Test
+	void testResultIsNotCachedWithoutPatient() throws Exception {
+		Callable<IBaseResource> query = () -> {
+			queries.incrementAndGet();
+			return null;
+		};
+		cache.get(SERVER, "token-a", null, "item1", "Practitioner/1", query);
+		cache.get(SERVER, "token-a", null, "item1", "Practitioner/1", query);
+		Assertions.assertEquals(2, queries.get());
+	}
+
+	@Test
+	void testResultReadBeforeAnEvictionIsNotCached() throws Exception {
+		Callable<IBaseResource> query = () -> {
+			queries.incrementAndGet();
+			// a write of the patient commits while the query runs
+			cache.evictPatient("123");
+			return new Patient();
+		};
+		cache.get(SERVER, "token-a", "123", "item1", "Patient/123", query);
+		get("token-a");
+		Assertions.assertEquals(2, queries.get());
+	}
+
+	private IBaseResource get(String accessToken) throws Exception {
+		Callable<IBaseResource> query = () -> {
+			queries.incrementAndGet();
+			Patient patient = new Patient();
+			patient.setId("123");
+			patient.addName().setFamily("Chalmers");
+			return patient;
+		};
+		return cache.get(SERVER, accessToken, "123", "item1", "Patient/123", query);
+	}
+}
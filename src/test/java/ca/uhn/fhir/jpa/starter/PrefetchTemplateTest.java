@@ -0,0 +1,72 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.cdshooks.PrefetchTemplate;
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestContextJson;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+class PrefetchTemplateTest {
+	private static final LocalDate TODAY = LocalDate.of(2025, 3, 15);
+
+	@Test
+	void testReadStripsTheResourceTypeOfTheBoundId() {
+		PrefetchTemplate.Query query =
+				PrefetchTemplate.compile("Patient/{{context.patientId}}").bind(context("Patient/123"), TODAY);
+		Assertions.assertEquals("Patient", query.getResourceType());
+		Assertions.assertEquals("123", query.getResourceId());
+		Assertions.assertEquals("Patient/123", query.getUrl());
+	}
+
+	@Test
+	void testSearchBindsContextAndDates() {
+		PrefetchTemplate.Query query = PrefetchTemplate.compile(
+						"Encounter?patient={{context.patientId}}&date=ge{{today - 1 years}}&date=lt{{ today + 2 weeks }}")
+				.bind(context("123"), TODAY);
+		Assertions.assertNull(query.getResourceId());
+		Assertions.assertEquals("Encounter?patient=123&date=ge2024-03-15&date=lt2025-03-29", query.getUrl());
+		Assertions.assertEquals(
+				Map.of("patient", List.of("123"), "date", List.of("ge2024-03-15", "lt2025-03-29")), query.getParams());
+	}
+
+	@Test
+	void testLiteralsAreDecodedOnce() {
+		PrefetchTemplate.Query query = PrefetchTemplate.compile(
+						"Observation?subject={{context.patientId}}&code=http%3A%2F%2Floinc.org%7C1-8")
+				.bind(context("123"), TODAY);
+		Assertions.assertEquals(List.of("http://loinc.org|1-8"), query.getParams().get("code"));
+		Assertions.assertTrue(query.getUrl().endsWith("&code=http%3A%2F%2Floinc.org%7C1-8"), query.getUrl());
+	}
+
+	@Test
+	void testBoundValuesAreEscapedInTheUrl() {
+		PrefetchTemplate.Query query = PrefetchTemplate.compile("Condition?patient={{context.patientId}}")
+				.bind(context("123&_id=other"), TODAY);
+		Assertions.assertEquals("Condition?patient=123%26_id%3Dother", query.getUrl());
+		Assertions.assertEquals(Map.of("patient", List.of("123&_id=other")), query.getParams());
+	}
+
+	@Test
+	void testMissingContextValueIsRejected() {
+		PrefetchTemplate template = PrefetchTemplate.compile("Condition?patient={{context.patientId}}");
+		Assertions.assertThrows(
+				InvalidRequestException.class, () -> template.bind(new CdsServiceRequestContextJson(), TODAY));
+	}
+
+	@Test
+	void testUnsupportedTokenIsRejectedWhenCompiled() {
+		Assertions.assertThrows(
+				IllegalArgumentException.class,
+				() -> PrefetchTemplate.compile("Condition?patient={{userPractitionerId}}"));
+	}
+
+	private static CdsServiceRequestContextJson context(String patientId) {
+		CdsServiceRequestContextJson context = new CdsServiceRequestContextJson();
+		context.put("patientId", patientId);
+		return context;
+	}
+}
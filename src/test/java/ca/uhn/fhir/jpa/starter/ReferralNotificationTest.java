@@ -0,0 +1,111 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.gravity.interceptors.PostReferralTaskInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.Subscription;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.time.Duration;
+
+import static org.awaitility.Awaitility.await;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, ReferralReceiverStandIn.class}, properties = {
+	"spring.jpa.properties.hibernate.search.backend.directory.type=local-heap",
+	"spring.datasource.url=jdbc:h2:mem:dbr4",
+	"hapi.fhir.cr_enabled=false",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.referral.push_enabled=true",
+	"hapi.fhir.referral.cluster.lease_ttl_ms=3000"
+})
+class ReferralNotificationTest {
+	private static final String REFERRAL_TASK_PROFILE = "http://hl7.org/fhir/us/sdoh-clinicalcare/StructureDefinition/SDOHCC-TaskForReferralManagement";
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private ReferralReceiverStandIn receiver;
+
+	private IGenericClient client;
+	private IGenericClient receiverClient;
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4Cached();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+		receiverClient = ctx.newRestfulGenericClient(receiverBaseUrl());
+	}
+
+	@Test
+	void testReceiverStatusChangeIsPushed() {
+		Task task = client.read().resource(Task.class).withId(createReferralTask()).execute();
+		Assertions.assertEquals(Task.TaskStatus.REQUESTED, task.getStatus());
+
+		// the task is sent to the receiver from the outbox once the create committed, and the
+		// receiver then holds a rest-hook Subscription on its copy
+		await().atMost(Duration.ofSeconds(30))
+				.until(() -> !receiver.getTasks().isEmpty() && !receiver.getSubscriptions().isEmpty());
+		Assertions.assertEquals(1, receiver.getTasks().size());
+		Task receiverTask = receiver.getTasks().get(0);
+		Subscription subscription = receiver.getSubscriptions().stream()
+				.filter(s -> s.getCriteria().equals("Task?_id=" + receiverTask.getIdPart()))
+				.findFirst()
+				.orElseThrow();
+		Assertions.assertEquals(Subscription.SubscriptionChannelType.RESTHOOK, subscription.getChannel().getType());
+		Assertions.assertEquals(
+				"http://localhost:" + port + PostReferralTaskInterceptor.NOTIFICATION_PATH,
+				subscription.getChannel().getEndpoint());
+
+		receiverTask.setStatus(Task.TaskStatus.ACCEPTED);
+		Task accepted = (Task) receiverClient.update().resource(receiverTask).execute().getResource();
+		receiver.notifySubscribers(accepted);
+
+		Task updated = client.read().resource(Task.class).withId(task.getIdPart()).execute();
+		Assertions.assertEquals(Task.TaskStatus.ACCEPTED, updated.getStatus());
+	}
+
+	private String createReferralTask() {
+		Organization owner = new Organization();
+		owner.setName("Stand-in receiver");
+		owner.addContact().addTelecom().setSystem(ContactPoint.ContactPointSystem.URL).setValue(receiverBaseUrl());
+		String ownerId = client.create().resource(owner).execute().getId().getIdPart();
+		String patientId = client.create().resource(new Patient()).execute().getId().getIdPart();
+		String practitionerId =
+				client.create().resource(new Practitioner()).execute().getId().getIdPart();
+
+		ServiceRequest serviceRequest = new ServiceRequest();
+		serviceRequest.setStatus(ServiceRequest.ServiceRequestStatus.ACTIVE);
+		serviceRequest.setIntent(ServiceRequest.ServiceRequestIntent.ORDER);
+		serviceRequest.getSubject().setReference("Patient/" + patientId);
+		String serviceRequestId =
+				client.create().resource(serviceRequest).execute().getId().getIdPart();
+
+		Task task = new Task();
+		task.getMeta().addProfile(REFERRAL_TASK_PROFILE);
+		task.setStatus(Task.TaskStatus.REQUESTED);
+		task.setIntent(Task.TaskIntent.ORDER);
+		task.getFor().setReference("Patient/" + patientId);
+		task.getRequester().setReference("Practitioner/" + practitionerId);
+		task.getFocus().setReference("ServiceRequest/" + serviceRequestId);
+		task.getOwner().setReference("Organization/" + ownerId);
+		return client.create().resource(task).execute().getId().getIdPart();
+	}
+
+	private String receiverBaseUrl() {
+		return "http://localhost:" + port + ReferralReceiverStandIn.PATH;
+	}
+}
@@ -0,0 +1,131 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.authorization.AuthorizationController;
+import ca.uhn.fhir.jpa.starter.gravity.interceptors.PostReferralTaskInterceptor;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.awaitility.Awaitility.await;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class, ReferralReceiverStandIn.class}, properties = {
+	"spring.jpa.properties.hibernate.search.backend.directory.type=local-heap",
+	"spring.datasource.url=jdbc:h2:mem:dbr4",
+	"hapi.fhir.cr_enabled=false",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.referral.push_enabled=true",
+	"hapi.fhir.referral.outbox.poll_interval_ms=200"
+})
+class ReferralOutboxTest {
+	private static final String REFERRAL_TASK_PROFILE = "http://hl7.org/fhir/us/sdoh-clinicalcare/StructureDefinition/SDOHCC-TaskForReferralManagement";
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private ReferralReceiverStandIn receiver;
+
+	@Autowired
+	private PostReferralTaskInterceptor interceptor;
+
+	private IGenericClient client;
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4Cached();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+
+	@AfterEach
+	void tearDown() {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+
+	@Test
+	void testEntryIsDeliveredOnlyAfterCommit() throws InterruptedException {
+		Task task = referralTask();
+		List<TransactionSynchronization> synchronizations = createInTransaction(task);
+
+		// the entry exists while the transaction is open, but is not due yet
+		Assertions.assertTrue(AuthorizationController.getDB().hasOutboxEntry(task.getIdPart()));
+		Assertions.assertTrue(isNotDue(task.getIdPart()));
+		Thread.sleep(1000);
+		Assertions.assertFalse(receivedByReceiver(task));
+
+		synchronizations.forEach(s -> s.afterCompletion(TransactionSynchronization.STATUS_COMMITTED));
+		await().atMost(Duration.ofSeconds(30)).until(() -> receivedByReceiver(task));
+		await().atMost(Duration.ofSeconds(30))
+				.until(() -> !AuthorizationController.getDB().hasOutboxEntry(task.getIdPart()));
+	}
+
+	@Test
+	void testEntryIsDroppedOnRollback() throws InterruptedException {
+		Task task = referralTask();
+		List<TransactionSynchronization> synchronizations = createInTransaction(task);
+		Assertions.assertNotNull(AuthorizationController.getDB().readActiveTask(task.getIdPart()));
+
+		synchronizations.forEach(s -> s.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+		Assertions.assertFalse(AuthorizationController.getDB().hasOutboxEntry(task.getIdPart()));
+		Assertions.assertNull(AuthorizationController.getDB().readActiveTask(task.getIdPart()));
+		Thread.sleep(1000);
+		Assertions.assertFalse(receivedByReceiver(task));
+	}
+
+	private List<TransactionSynchronization> createInTransaction(Task task) {
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.setFhirServerBase("http://localhost:" + port + "/fhir");
+		TransactionSynchronizationManager.initSynchronization();
+		interceptor.handleTaskCreation(task, requestDetails, null);
+		List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+		TransactionSynchronizationManager.clearSynchronization();
+		return synchronizations;
+	}
+
+	private boolean isNotDue(String taskId) {
+		return AuthorizationController.getDB().readDueOutboxEntries(System.currentTimeMillis(), 1000).stream()
+				.noneMatch(e -> e.getTaskId().equals(taskId));
+	}
+
+	private boolean receivedByReceiver(Task task) {
+		return receiver.getTasks().stream().anyMatch(t -> task.getDescription().equals(t.getDescription()));
+	}
+
+	private Task referralTask() {
+		Organization owner = new Organization();
+		owner.setName("Stand-in receiver");
+		owner.addContact()
+				.addTelecom()
+				.setSystem(ContactPoint.ContactPointSystem.URL)
+				.setValue("http://localhost:" + port + ReferralReceiverStandIn.PATH);
+		String ownerId = client.create().resource(owner).execute().getId().getIdPart();
+
+		Task task = new Task();
+		task.setId("Task/outbox-" + UUID.randomUUID());
+		task.getMeta().addProfile(REFERRAL_TASK_PROFILE);
+		task.setStatus(Task.TaskStatus.REQUESTED);
+		task.setIntent(Task.TaskIntent.ORDER);
+		task.setDescription(task.getIdPart());
+		task.getOwner().setReference("Organization/" + ownerId);
+		return task;
+	}
+}
@@ -0,0 +1,68 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.gclient.IUpdateExecutable;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.provider.HashMapResourceProvider;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Subscription;
+import org.hl7.fhir.r4.model.Task;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.web.servlet.ServletRegistrationBean;
+import org.springframework.context.annotation.Bean;
+
+import java.util.List;
+
+/**
+ * In-memory stand-in for a referral receiver server, served by the test
+ * application itself under /receiver. Tasks and Subscriptions are only stored;
+ * notifySubscribers plays the part of the receiver's rest-hook delivery.
+ */
+@TestConfiguration
+public class ReferralReceiverStandIn {
+	public static final String PATH = "/receiver";
+
+	private final FhirContext ctx = FhirContext.forR4Cached();
+	private final HashMapResourceProvider<Task> taskProvider = new HashMapResourceProvider<>(ctx, Task.class);
+	private final HashMapResourceProvider<Subscription> subscriptionProvider =
+			new HashMapResourceProvider<>(ctx, Subscription.class);
+
+	@Bean
+	public ServletRegistrationBean<RestfulServer> referralReceiverRegistration() {
+		RestfulServer server = new RestfulServer(ctx);
+		server.registerProviders(taskProvider, subscriptionProvider);
+		ServletRegistrationBean<RestfulServer> registration = new ServletRegistrationBean<>(server, PATH + "/*");
+		registration.setName("referralReceiverStandIn");
+		return registration;
+	}
+
+	public List<Task> getTasks() {
+		return taskProvider.getStoredResources();
+	}
+
+	public List<Subscription> getSubscriptions() {
+		return subscriptionProvider.getStoredResources();
+	}
+
+	/**
+	 * Deliver the task to every rest-hook Subscription on it, the way a HAPI
+	 * receiver does with an application/fhir+json payload
+	 */
+	public void notifySubscribers(Task task) {
+		for (Subscription subscription : getSubscriptions()) {
+			if (!subscription.getCriteria().equals("Task?_id=" + task.getIdElement().getIdPart())) continue;
+
+			ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+			IGenericClient client =
+					ctx.newRestfulGenericClient(subscription.getChannel().getEndpoint());
+			IUpdateExecutable update = client.update().resource(task);
+			for (StringType header : subscription.getChannel().getHeader()) {
+				String[] parts = header.getValue().split(":", 2);
+				update = update.withAdditionalHeader(parts[0].trim(), parts[1].trim());
+			}
+			update.execute();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.authorization.Database;
+import ca.uhn.fhir.jpa.starter.gravity.cluster.ShardLeaseManager;
+import ca.uhn.fhir.jpa.starter.gravity.models.OutboxEntry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.IntStream;
+
+import static org.awaitility.Awaitility.await;
+
+class ShardLeaseManagerTest {
+	private static final int SHARDS = 8;
+	private static final List<String> TASK_IDS =
+			IntStream.range(0, 200).mapToObj(i -> "task-" + i).toList();
+
+	private Database database;
+	private final List<ShardLeaseManager> managers = new ArrayList<>();
+
+	@BeforeEach
+	void setUp() {
+		AppProperties.Oauth oauth = new AppProperties.Oauth();
+		oauth.setJdbc_url("jdbc:h2:mem:leases-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+		database = new Database("./target/database/", oauth);
+	}
+
+	@AfterEach
+	void tearDown() {
+		managers.forEach(ShardLeaseManager::shutdown);
+		database.close();
+	}
+
+	@Test
+	void testNodesOwnDisjointFairShares() {
+		ShardLeaseManager first = start("first");
+		await().atMost(Duration.ofSeconds(10)).until(() -> ownedBy(first) == TASK_IDS.size());
+
+		// a joining node gets half of the shards, the first node releases them
+		ShardLeaseManager second = start("second");
+		await().atMost(Duration.ofSeconds(10))
+				.until(() -> ownedShards(first) == SHARDS / 2 && ownedShards(second) == SHARDS / 2);
+		for (String taskId : TASK_IDS) {
+			Assertions.assertNotEquals(first.ownsTask(taskId), second.ownsTask(taskId), taskId);
+		}
+	}
+
+	@Test
+	void testShardsOfADeadNodeAreTakenOver() {
+		ShardLeaseManager first = start("first");
+		ShardLeaseManager second = start("second");
+		await().atMost(Duration.ofSeconds(10))
+				.until(() -> ownedShards(first) == SHARDS / 2 && ownedShards(second) == SHARDS / 2);
+
+		// the second node stops renewing without releasing its leases
+		((ScheduledExecutorService) ReflectionTestUtils.getField(second, "scheduler")).shutdownNow();
+		await().atMost(Duration.ofSeconds(10)).until(() -> ownedBy(first) == TASK_IDS.size());
+		Assertions.assertEquals(0, ownedBy(second));
+	}
+
+	@Test
+	void testReleasedShardsAreTakenOver() {
+		ShardLeaseManager first = start("first");
+		ShardLeaseManager second = start("second");
+		await().atMost(Duration.ofSeconds(10))
+				.until(() -> ownedShards(first) == SHARDS / 2 && ownedShards(second) == SHARDS / 2);
+
+		second.shutdown();
+		Assertions.assertEquals(0, ownedBy(second));
+		await().atMost(Duration.ofSeconds(10)).until(() -> ownedBy(first) == TASK_IDS.size());
+	}
+
+	@Test
+	void testDueOutboxEntriesOfOtherShardsDoNotFillTheBatch() {
+		ShardLeaseManager first = start("first");
+		ShardLeaseManager second = start("second");
+		await().atMost(Duration.ofSeconds(10))
+				.until(() -> ownedShards(first) == SHARDS / 2 && ownedShards(second) == SHARDS / 2);
+
+		// the 150 oldest due entries belong to the second node
+		long now = System.currentTimeMillis();
+		List<String> foreign = IntStream.range(0, 1000)
+				.mapToObj(i -> "outbox-task-" + i)
+				.filter(second::ownsTask)
+				.limit(150)
+				.toList();
+		Assertions.assertEquals(150, foreign.size());
+		for (int i = 0; i < foreign.size(); i++) {
+			String taskId = foreign.get(i);
+			database.write(new OutboxEntry(taskId, second.shardOf(taskId), "http://receiver", "{}", now - 1000 + i));
+		}
+		String own = TASK_IDS.stream().filter(first::ownsTask).findFirst().orElseThrow();
+		database.write(new OutboxEntry(own, first.shardOf(own), "http://receiver", "{}", now));
+
+		List<OutboxEntry> due = database.readDueOutboxEntries(System.currentTimeMillis(), "first", 100);
+		Assertions.assertEquals(List.of(own), due.stream().map(OutboxEntry::getTaskId).toList());
+		Assertions.assertEquals(
+				100,
+				database.readDueOutboxEntries(System.currentTimeMillis(), "second", 100).size());
+	}
+
+	private ShardLeaseManager start(String nodeId) {
+		AppProperties.Referral.Cluster properties = new AppProperties.Referral.Cluster();
+		properties.setNode_id(nodeId);
+		properties.setShard_count(SHARDS);
+		properties.setLease_ttl_ms(900L);
+		ShardLeaseManager manager = new ShardLeaseManager(properties, () -> database);
+		managers.add(manager);
+		manager.start();
+		return manager;
+	}
+
+	private static long ownedBy(ShardLeaseManager manager) {
+		return TASK_IDS.stream().filter(manager::ownsTask).count();
+	}
+
+	private static long ownedShards(ShardLeaseManager manager) {
+		return TASK_IDS.stream()
+				.filter(manager::ownsTask)
+				.map(manager::shardOf)
+				.distinct()
+				.count();
+	}
+}
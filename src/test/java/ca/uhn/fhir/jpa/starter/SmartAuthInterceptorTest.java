@@ -0,0 +1,112 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.authorization.AuthorizationController;
+import ca.uhn.fhir.jpa.starter.authorization.JwtKeyMaterial;
+import ca.uhn.fhir.jpa.starter.gravity.interceptors.SmartAuthInterceptor;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import com.github.benmanes.caffeine.cache.Cache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.security.KeyPair;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Instant;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SmartAuthInterceptorTest {
+	private static final String BASE = "http://localhost:8080/fhir";
+
+	private String previousKeyId;
+	private RSAPublicKey previousPublicKey;
+	private RSAPrivateKey previousPrivateKey;
+	private JwtKeyMaterial keyMaterial;
+	private SmartAuthInterceptor interceptor;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		previousKeyId = AuthorizationController.getKeyId();
+		previousPublicKey = AuthorizationController.getPublicKey();
+		previousPrivateKey = AuthorizationController.getPrivateKey();
+		keyMaterial = rotateKeys("kid-1");
+		interceptor = new SmartAuthInterceptor(new AppProperties());
+	}
+
+	@AfterEach
+	void tearDown() {
+		if (previousPublicKey != null) {
+			AuthorizationController.setKeys(previousKeyId, previousPublicKey, previousPrivateKey);
+		}
+	}
+
+	@Test
+	void testVerifiedTokenIsCachedWithItsRules() {
+		String token = JwtKeyMaterialTest.token(keyMaterial, BASE);
+		List<IAuthRule> rules = interceptor.authorizeToken(token, BASE);
+		Assertions.assertEquals(1, verifiedTokens().estimatedSize());
+		Assertions.assertSame(rules, interceptor.authorizeToken(token, BASE));
+		Assertions.assertEquals(1, verifiedTokens().estimatedSize());
+	}
+
+	@Test
+	void testCachedTokenIsOnlyTrustedForItsServerBase() {
+		String token = JwtKeyMaterialTest.token(keyMaterial, BASE);
+		interceptor.authorizeToken(token, BASE);
+		Assertions.assertThrows(AuthenticationException.class, () -> interceptor.authorizeToken(token, "http://other/fhir"));
+	}
+
+	@Test
+	void testCachedTokenIsVerifiedAgainAfterKeyRotation() throws Exception {
+		String token = JwtKeyMaterialTest.token(keyMaterial, BASE);
+		interceptor.authorizeToken(token, BASE);
+		rotateKeys("kid-2");
+		Assertions.assertThrows(AuthenticationException.class, () -> interceptor.authorizeToken(token, BASE));
+	}
+
+	@Test
+	void testCachedTokenExpiresWithItsExpClaim() throws InterruptedException {
+		String token = JwtKeyMaterialTest.token(keyMaterial, BASE, Instant.now().plusSeconds(2));
+		interceptor.authorizeToken(token, BASE);
+		Thread.sleep(3000);
+		Assertions.assertThrows(AuthenticationException.class, () -> interceptor.authorizeToken(token, BASE));
+	}
+
+	@Test
+	void testAdminAndMissingTokens() {
+		List<IAuthRule> admin = interceptor.authorizeToken("admin", BASE);
+		Assertions.assertSame(admin, interceptor.authorizeToken("admin", BASE));
+		Assertions.assertEquals(0, verifiedTokens().estimatedSize());
+
+		List<IAuthRule> unauthorized = interceptor.buildRuleList(request(null));
+		Assertions.assertSame(unauthorized, interceptor.buildRuleList(request(null)));
+		Assertions.assertNotSame(admin, unauthorized);
+		Assertions.assertThrows(AuthenticationException.class, () -> interceptor.buildRuleList(request("Basic abc")));
+		Assertions.assertSame(admin, interceptor.buildRuleList(request("Bearer admin")));
+	}
+
+	private Cache<?, ?> verifiedTokens() {
+		return (Cache<?, ?>) ReflectionTestUtils.getField(interceptor, "verifiedTokens");
+	}
+
+	private static RequestDetails request(String authorization) {
+		RequestDetails request = mock(RequestDetails.class);
+		when(request.getHeader("Authorization")).thenReturn(authorization);
+		when(request.getFhirServerBase()).thenReturn(BASE);
+		return request;
+	}
+
+	private static JwtKeyMaterial rotateKeys(String keyId) throws Exception {
+		KeyPair keyPair = JwtKeyMaterialTest.keyPair();
+		AuthorizationController.setKeys(
+				keyId, (RSAPublicKey) keyPair.getPublic(), (RSAPrivateKey) keyPair.getPrivate());
+		return AuthorizationController.getKeyMaterial();
+	}
+}
@@ -0,0 +1,108 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.starter.cdshooks.ModuleConfigurationPrefetchSvc;
+import ca.uhn.fhir.jpa.starter.cdshooks.UdsLabValueSet;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestAuthorizationJson;
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestContextJson;
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestJson;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceMethod;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = Application.class, properties = {
+	"spring.jpa.properties.hibernate.search.backend.directory.type=local-heap",
+	"spring.datasource.url=jdbc:h2:mem:dbr4",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.cr.enabled=true",
+	"hapi.fhir.cdshooks.enabled=true",
+	"spring.main.allow-bean-definition-overriding=true",
+	"hapi.fhir.supported_resource_types=",
+	"hapi.fhir.cdshooks.prefetch.cacheTtlSeconds=0",
+	"hapi.fhir.server_address=http://localhost:8080/fhir"
+})
+class UdsLabPrefetchTest {
+	@Autowired
+	private ModuleConfigurationPrefetchSvc prefetchSvc;
+
+	@Autowired
+	private DaoRegistry daoRegistry;
+
+	@Test
+	void testLabPrefetchFindsUdsLabsOnly() {
+		String patientId = "uds-" + UUID.randomUUID();
+		Patient patient = new Patient();
+		patient.setId(patientId);
+		daoRegistry.getResourceDao(Patient.class).update(patient, new SystemRequestDetails());
+		// the first and the last code of the set, and one outside it
+		String first = UdsLabValueSet.CODES.substring(0, UdsLabValueSet.CODES.indexOf(','));
+		String last = UdsLabValueSet.CODES.substring(UdsLabValueSet.CODES.lastIndexOf(',') + 1);
+		createLab(patientId, first);
+		createLab(patientId, last);
+		createLab(patientId, "2339-0");
+
+		CdsServiceRequestJson request = request(patientId);
+		prefetchSvc.augmentRequest(request, moduleShapedService());
+
+		Bundle labs = (Bundle) request.getPrefetch("item6");
+		Assertions.assertNotNull(labs, "item6 was not prefetched");
+		List<String> codes = labs.getEntry().stream()
+				.map(entry -> ((Observation) entry.getResource()).getCode().getCodingFirstRep().getCode())
+				.sorted()
+				.toList();
+		Assertions.assertEquals(Stream.of(first, last).sorted().toList(), codes);
+	}
+
+	private void createLab(String patientId, String code) {
+		Observation observation = new Observation();
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.addCategory()
+				.addCoding()
+				.setSystem("http://terminology.hl7.org/CodeSystem/observation-category")
+				.setCode("laboratory");
+		observation.getCode().addCoding().setSystem(UdsLabValueSet.LOINC).setCode(code);
+		observation.setSubject(new Reference("Patient/" + patientId));
+		observation.setEffective(DateTimeType.now());
+		daoRegistry.getResourceDao(Observation.class).create(observation, new SystemRequestDetails());
+	}
+
+	private static CdsServiceRequestJson request(String patientId) {
+		CdsServiceRequestContextJson context = new CdsServiceRequestContextJson();
+		context.put("patientId", patientId);
+		CdsServiceRequestJson request = new CdsServiceRequestJson();
+		request.setHook("patient-view");
+		request.setFhirServer("http://localhost:8080/fhir");
+		request.setContext(context);
+		request.setServiceRequestAuthorizationJson(new CdsServiceRequestAuthorizationJson().setAccessToken("admin"));
+		return request;
+	}
+
+	private static ICdsServiceMethod moduleShapedService() {
+		CdsServiceJson service = new CdsServiceJson().setId("uds-plus");
+		service.addPrefetch("item1", "Patient/{{context.patientId}}");
+		service.addPrefetch("item2", "MedicationRequest?subject={{context.patientId}}");
+		service.addPrefetch("item3", "Condition?patient={{context.patientId}}");
+		service.addPrefetch("item4", "Encounter?patient={{context.patientId}}");
+		service.addPrefetch("item5", "ServiceRequest?patient={{context.patientId}}");
+		service.addPrefetch("item6", "Observation?subject={{context.patientId}}&code=1-8");
+		ICdsServiceMethod method = mock(ICdsServiceMethod.class);
+		when(method.getCdsServiceJson()).thenReturn(service);
+		return method;
+	}
+}